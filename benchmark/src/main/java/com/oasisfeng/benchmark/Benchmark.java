@@ -0,0 +1,179 @@
+package com.oasisfeng.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Minimal JMH-style harness: time-boxed warm-up and measurement iterations, average time per operation,
+ * and results in JMH-compatible JSON, so that results of different commits can be compared with existing JMH tools.
+ *
+ * Typical usage in a JUnit test:
+ * <pre>
+ * private static final Benchmark sBenchmark = new Benchmark("ClosureBenchmark");
+ * &#64;Test public void parcel() { sBenchmark.measure("parcel", () -> ...); }
+ * &#64;AfterClass public static void report() throws IOException { sBenchmark.report(); }
+ * </pre>
+ */
+public class Benchmark {
+
+	/** The operation to measure. Its result is consumed to prevent dead-code elimination. */
+	public interface Operation<T> { T run() throws Exception; }
+
+	public static class Result {
+
+		public final String name;
+		public final Map<String, String> params;
+		public final double[] scores;		// Nanoseconds per operation, in each measurement iteration
+
+		public double mean() { return Arrays.stream(scores).average().orElse(Double.NaN); }
+
+		/** @return half-width of 99.9% confidence interval, as JMH "scoreError" (with normal approximation) */
+		public double error() {
+			if (scores.length < 2) return Double.NaN;
+			final double mean = mean(), variance = Arrays.stream(scores).map(s -> (s - mean) * (s - mean)).sum() / (scores.length - 1);
+			return 3.291 * Math.sqrt(variance / scores.length);
+		}
+
+		public double percentile(final double p) {
+			final double[] sorted = scores.clone();
+			Arrays.sort(sorted);
+			return sorted[(int) Math.min(sorted.length - 1, Math.round(p / 100 * (sorted.length - 1)))];
+		}
+
+		@Override public String toString() {
+			return String.format(Locale.US, "%s%s: %.1f ± %.1f ns/op", name, params.isEmpty() ? "" : params, mean(), error());
+		}
+
+		Result(final String name, final Map<String, String> params, final double[] scores) {
+			this.name = name; this.params = params; this.scores = scores;
+		}
+	}
+
+	public Benchmark iterations(final int warmup, final int measurement, final long millis_per_iteration) {
+		mWarmupIterations = warmup; mMeasurementIterations = measurement; mIterationMillis = millis_per_iteration;
+		return this;
+	}
+
+	public Result measure(final String name, final Operation<?> operation) {
+		return measure(name, new LinkedHashMap<>(), operation);
+	}
+
+	/** @param params benchmark parameters (e.g. size of input), reported as "params" in JMH format */
+	public Result measure(final String name, final Map<String, String> params, final Operation<?> operation) {
+		try {
+			for (int i = 0; i < mWarmupIterations; i ++) runIteration(operation);
+			final double[] scores = new double[mMeasurementIterations];
+			for (int i = 0; i < mMeasurementIterations; i ++) scores[i] = runIteration(operation);
+			final Result result = new Result(name, params, scores);
+			mResults.add(result);
+			System.out.println(mSuite + "." + result);
+			return result;
+		} catch (final Exception e) {
+			throw new IllegalStateException("Error running " + mSuite + "." + name, e);
+		}
+	}
+
+	/** @return nanoseconds per operation */
+	private double runIteration(final Operation<?> operation) throws Exception {
+		final long deadline = System.nanoTime() + mIterationMillis * 1_000_000;
+		long count = 0, start = System.nanoTime(), now;
+		do {
+			consume(operation.run());
+			count ++;
+		} while ((now = System.nanoTime()) < deadline);
+		return (double) (now - start) / count;
+	}
+
+	private void consume(final Object result) {
+		if (result != null && result.hashCode() == System.identityHashCode(this)) mSink = result;	// Rarely true, but not predictable by JIT
+	}
+
+	/** Write results to "${benchmark.output}/${suite}.json" (or "build/benchmark-results" by default) */
+	public File report() throws IOException {
+		final File dir = new File(System.getProperty("benchmark.output", "build/benchmark-results"));
+		if (! dir.isDirectory() && ! dir.mkdirs()) throw new IOException("Cannot create directory " + dir);
+		final File file = new File(dir, mSuite + ".json");
+		try (final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			writeJson(writer);
+		}
+		System.out.println("Benchmark results written to " + file);
+		return file;
+	}
+
+	private void writeJson(final Writer out) throws IOException {
+		out.write("[\n");
+		for (int i = 0; i < mResults.size(); i ++) {
+			final Result result = mResults.get(i);
+			out.write("  {\n");
+			out.write("    \"benchmark\": " + quote(mSuite + "." + result.name) + ",\n");
+			out.write("    \"mode\": \"avgt\",\n    \"threads\": 1,\n    \"forks\": 0,\n");
+			out.write("    \"jvm\": " + quote(System.getProperty("java.home")) + ",\n");
+			out.write("    \"vmVersion\": " + quote(System.getProperty("java.vm.version")) + ",\n");
+			out.write("    \"warmupIterations\": " + mWarmupIterations + ",\n");
+			out.write("    \"warmupTime\": \"" + mIterationMillis + " ms\",\n");
+			out.write("    \"measurementIterations\": " + mMeasurementIterations + ",\n");
+			out.write("    \"measurementTime\": \"" + mIterationMillis + " ms\",\n");
+			if (! result.params.isEmpty()) {
+				out.write("    \"params\": {");
+				int j = 0;
+				for (final Map.Entry<String, String> param : result.params.entrySet())
+					out.write((j ++ > 0 ? ", " : " ") + quote(param.getKey()) + ": " + quote(param.getValue()));
+				out.write(" },\n");
+			}
+			out.write("    \"primaryMetric\": {\n");
+			out.write("      \"score\": " + number(result.mean()) + ",\n");
+			out.write("      \"scoreError\": " + number(result.error()) + ",\n");
+			out.write("      \"scoreConfidence\": [ " + number(result.mean() - result.error()) + ", " + number(result.mean() + result.error()) + " ],\n");
+			out.write("      \"scorePercentiles\": { \"0.0\": " + number(result.percentile(0)) + ", \"50.0\": " + number(result.percentile(50))
+					+ ", \"90.0\": " + number(result.percentile(90)) + ", \"100.0\": " + number(result.percentile(100)) + " },\n");
+			out.write("      \"scoreUnit\": \"ns/op\",\n");
+			final StringBuilder raw = new StringBuilder();
+			for (final double score : result.scores) raw.append(raw.length() > 0 ? ", " : "").append(number(score));
+			out.write("      \"rawData\": [ [ " + raw + " ] ]\n");
+			out.write("    },\n    \"secondaryMetrics\": {}\n");
+			out.write(i < mResults.size() - 1 ? "  },\n" : "  }\n");
+		}
+		out.write("]\n");
+	}
+
+	private static String number(final double value) {
+		return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.US, "%.3f", value);
+	}
+
+	private static String quote(final String value) {
+		if (value == null) return "null";
+		final StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i ++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') builder.append('\\').append(c);
+			else if (c < 0x20) builder.append(String.format("\\u%04x", (int) c));
+			else builder.append(c);
+		}
+		return builder.append('"').toString();
+	}
+
+	public static Map<String, String> params(final String... key_values) {
+		final Map<String, String> params = new LinkedHashMap<>();
+		for (int i = 0; i + 1 < key_values.length; i += 2) params.put(key_values[i], key_values[i + 1]);
+		return params;
+	}
+
+	public Benchmark(final String suite) { mSuite = suite; }
+
+	private final String mSuite;
+	private final List<Result> mResults = new ArrayList<>();
+	private int mWarmupIterations = 5;
+	private int mMeasurementIterations = 10;
+	private long mIterationMillis = 200;
+	@SuppressWarnings("unused") private volatile Object mSink;
+}
@@ -13,7 +13,6 @@ import android.content.pm.Signature;
 import android.net.Uri;
 import android.os.Process;
 import android.os.UserHandle;
-import android.util.ArrayMap;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -25,11 +24,13 @@ import com.oasisfeng.island.util.Permissions;
 import com.oasisfeng.island.util.Users;
 
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -118,7 +119,7 @@ class ApiDispatcher {
 		case Api.latest.ACTION_FREEZE: positive = true;		// Fall-through
 		case Api.latest.ACTION_UNFREEZE:
 			final boolean hidden = positive;
-			return processPackageUri(intent, null, pkg -> IslandManager.ensureAppHiddenState(context, pkg, hidden));
+			return processPackageUri(intent, pkgs -> setAppsHidden(context, pkgs, hidden), null);
 		case Api.latest.ACTION_LAUNCH:
 			return launchActivity(context, intent);
 		case Api.latest.ACTION_SUSPEND: positive = true;	// Fall-through
@@ -141,12 +142,7 @@ class ApiDispatcher {
 		if (uri == null) return "No data in Intent: " + intent;
 		final String scheme = uri.getScheme();
 
-		if ("package".equals(scheme)) {
-			final String pkg = uri.getSchemeSpecificPart();
-			final String free_to_launch = IslandManager.ensureAppFreeToLaunch(context, pkg);
-			if (! free_to_launch.isEmpty()) return free_to_launch;
-			return IslandManager.launchApp(context, pkg, Process.myUserHandle()) ? null : "no_launcher_activity";
-		}
+		if ("package".equals(scheme)) return launchApp(context, uri.getSchemeSpecificPart());
 
 		if (! "intent".equals(scheme)) return "Unsupported intent data scheme: " + intent;
 		final Intent target;
@@ -164,6 +160,37 @@ class ApiDispatcher {
 		return null;
 	}
 
+	/** @return null for success, or error message for debugging purpose (NOT part of the API protocol). */
+	static String launchApp(final Context context, final String pkg) {
+		final String free_to_launch = IslandManager.ensureAppFreeToLaunch(context, pkg);
+		if (! free_to_launch.isEmpty()) return free_to_launch;
+		return IslandManager.launchApp(context, pkg, Process.myUserHandle()) ? null : "no_launcher_activity";
+	}
+
+	/** @return whether each package is in the requested state, in the same order as packages. */
+	static boolean[] setAppsHidden(final Context context, final String[] pkgs, final boolean hidden) {
+		final boolean[] states = new boolean[pkgs.length];
+		Arrays.fill(states, hidden);
+		return IslandManager.ensureAppsHiddenState(context, pkgs, states);
+	}
+
+	/** @return whether each package is successfully (un)suspended, in the same order as packages. */
+	static boolean[] setPackagesSuspended(final Context context, final String[] pkgs, final boolean suspended) {
+		final List<String> failed = Arrays.asList(new DevicePolicies(context).invoke(DevicePolicyManager::setPackagesSuspended, pkgs, suspended));
+		final boolean[] results = new boolean[pkgs.length];
+		for (int i = 0; i < pkgs.length; i ++) results[i] = ! failed.contains(pkgs[i]);
+		return results;
+	}
+
+	private static String setAppsHidden(final Context context, final Stream<String> pkgs, final boolean hidden) {
+		final String[] pkg_array = pkgs.toArray(String[]::new);
+		final boolean[] results = setAppsHidden(context, pkg_array, hidden);
+		final List<String> failed_pkgs = new ArrayList<>();
+		for (int i = 0; i < pkg_array.length; i ++) if (! results[i]) failed_pkgs.add(pkg_array[i]);
+		if (failed_pkgs.isEmpty()) return null;
+		return "Failed: " + (pkg_array.length == 1 ? pkg_array[0] : failed_pkgs);
+	}
+
 	private static String setPackageSuspended(final Context context, final Stream<String> pkgs, final boolean suspended) {
 		final String[] failed = new DevicePolicies(context).invoke(DevicePolicyManager::setPackagesSuspended, pkgs.toArray(String[]::new), suspended);
 		return failed.length == 0 ? null : "Failed packages: " + Arrays.toString(failed);
@@ -192,7 +219,7 @@ class ApiDispatcher {
 		}
 	}
 
-	private static final Map<String/* pkg */, Integer/* signature hash */> sVerifiedCallers = new ArrayMap<>(2);
+	private static final Map<String/* pkg */, Integer/* signature hash */> sVerifiedCallers = new ConcurrentHashMap<>(2);	// Accessed from binder threads
 	static {
 		sVerifiedCallers.put("com.oasisfeng.greenify", -373128424);
 		sVerifiedCallers.put("com.catchingnow.icebox", -502198281);
@@ -0,0 +1,157 @@
+package com.oasisfeng.island.api;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.Nullable;
+
+import com.oasisfeng.island.util.Users;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Bound service API, with caller verified once per client UID (at bind time, or upon the first call if the binder is cached by system),
+ * instead of once per intent. Operations are batched and results are per-package.
+ *
+ * Only successful verification is cached, invalidated upon package changes of the client UID, or after {@link #VERIFICATION_TTL}
+ * (runtime permission revocation is not broadcast).
+ *
+ * @see Api.latest#ACTION_BIND_API
+ */
+public class ApiService extends Service {
+
+	@Override public void onCreate() {
+		super.onCreate();
+		final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+		filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+		filter.addDataScheme("package");
+		registerReceiver(mPackageObserver, filter);
+	}
+
+	@Override public void onDestroy() {
+		unregisterReceiver(mPackageObserver);
+		super.onDestroy();
+	}
+
+	@Override public IBinder onBind(final Intent intent) {
+		final PendingIntent id = intent.getParcelableExtra(Api.latest.EXTRA_CALLER_ID);
+		final String pkg = id != null ? id.getCreatorPackage() : null;
+		if (pkg != null) verifyCaller(pkg, id.getCreatorUid());
+		return mBinder;
+	}
+
+	/** @return actions allowed for the calling UID, verified upon first call if not yet verified at bind time. */
+	private Set<String> getAllowedActions() {
+		final int uid = Binder.getCallingUid();
+		synchronized (mAllowedActions) {
+			final Verified verified = mAllowedActions.get(uid);
+			if (verified != null && SystemClock.elapsedRealtime() - verified.mTime < VERIFICATION_TTL) return verified.mActions;
+		}
+		if (Users.isSameApp(uid, Process.myUid())) return verifyCaller(getPackageName(), uid);
+		final String[] pkgs = getPackageManager().getPackagesForUid(uid);
+		if (pkgs != null) for (final String pkg : pkgs) {
+			final Set<String> actions = verifyCaller(pkg, uid);
+			if (! actions.isEmpty()) return actions;
+		}
+		return Collections.emptySet();
+	}
+
+	private Set<String> verifyCaller(final String pkg, final int uid) {
+		final Set<String> actions = new ArraySet<>(ACTIONS.length);
+		for (final String action : ACTIONS) {
+			final String result = ApiDispatcher.verifyCaller(this, new Intent(action).setPackage(getPackageName()), pkg, uid);
+			if (result == null) actions.add(action);
+			else Log.d(TAG, "Unverified for " + action + ": " + result);
+		}
+		if (actions.isEmpty()) {		// Never cached, so that client could be verified once authorized.
+			Log.w(TAG, "Unverified client: " + pkg);
+			return actions;
+		}
+		final Verified verified = new Verified(actions);
+		synchronized (mAllowedActions) { mAllowedActions.put(uid, verified); }
+		return actions;
+	}
+
+	private int[] run(final String action, final String[] pkgs, final Operation operation) {
+		final int[] results = new int[pkgs.length];
+		if (! getAllowedActions().contains(action)) {
+			Arrays.fill(results, Api.latest.RESULT_UNVERIFIED_IDENTITY);
+			return results;
+		}
+		final long start = System.currentTimeMillis();
+		try {
+			final boolean[] succeeded = operation.apply(pkgs);
+			for (int i = 0; i < pkgs.length; i ++) results[i] = succeeded[i] ? Activity.RESULT_OK : Activity.RESULT_CANCELED;
+		} catch (final RuntimeException e) {		// Island might be have been deactivated or not set up yet.
+			Log.w(TAG, "Error executing " + action, e);
+			Arrays.fill(results, Activity.RESULT_CANCELED);
+		}
+		Log.i(TAG, action + " " + pkgs.length + " packages: " + Arrays.toString(results) + " in " + (System.currentTimeMillis() - start) + "ms");
+		return results;
+	}
+
+	private final IIslandApi.Stub mBinder = new IIslandApi.Stub() {
+
+		@Override public int[] freeze(final String[] pkgs) {
+			return run(Api.latest.ACTION_FREEZE, pkgs, p -> ApiDispatcher.setAppsHidden(ApiService.this, p, true));
+		}
+
+		@Override public int[] unfreeze(final String[] pkgs) {
+			return run(Api.latest.ACTION_UNFREEZE, pkgs, p -> ApiDispatcher.setAppsHidden(ApiService.this, p, false));
+		}
+
+		@Override public int[] suspend(final String[] pkgs) {
+			return run(Api.latest.ACTION_SUSPEND, pkgs, p -> ApiDispatcher.setPackagesSuspended(ApiService.this, p, true));
+		}
+
+		@Override public int[] unsuspend(final String[] pkgs) {
+			return run(Api.latest.ACTION_UNSUSPEND, pkgs, p -> ApiDispatcher.setPackagesSuspended(ApiService.this, p, false));
+		}
+
+		@Override public int launch(final String pkg) {
+			return run(Api.latest.ACTION_LAUNCH, new String[] { pkg }, p -> {
+				final String result = ApiDispatcher.launchApp(ApiService.this, p[0]);
+				if (result != null) Log.i(TAG, "Failed to launch " + p[0] + ": " + result);
+				return new boolean[] { result == null };
+			})[0];
+		}
+	};
+
+	private final BroadcastReceiver mPackageObserver = new BroadcastReceiver() { @Override public void onReceive(final Context context, final Intent intent) {
+		final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+		if (uid == -1) return;
+		synchronized (mAllowedActions) { mAllowedActions.remove(uid); }
+	}};
+
+	private interface Operation { boolean[] apply(String[] pkgs); }
+
+	private static class Verified {
+
+		Verified(final Set<String> actions) { mActions = actions; }
+
+		final Set<String> mActions;
+		final long mTime = SystemClock.elapsedRealtime();
+	}
+
+	private final SparseArray<Verified> mAllowedActions = new SparseArray<>();	// Client UID -> verified actions
+
+	private static final String[] ACTIONS = { Api.latest.ACTION_FREEZE, Api.latest.ACTION_UNFREEZE,
+			Api.latest.ACTION_SUSPEND, Api.latest.ACTION_UNSUSPEND, Api.latest.ACTION_LAUNCH };
+	private static final long VERIFICATION_TTL = 60_000;
+	private static final String TAG = "API.Service";
+}
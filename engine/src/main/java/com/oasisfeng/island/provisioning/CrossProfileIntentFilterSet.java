@@ -0,0 +1,77 @@
+package com.oasisfeng.island.provisioning;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.Parcel;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import com.oasisfeng.island.util.DevicePolicies;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Declarative set of cross-profile intent filters, applied as a whole (existent filters added by us are cleared first).
+ *
+ * The content hash of the set is persisted after successful application, with which the application is skipped if unchanged.
+ */
+class CrossProfileIntentFilterSet {
+
+	CrossProfileIntentFilterSet add(final IntentFilter filter, final int flags) {
+		mFilters.add(filter);
+		mFlags.add(flags);
+		return this;
+	}
+
+	/** Force the next application even if unchanged, e.g. upon explicit re-provisioning. */
+	static void invalidate(final SharedPreferences prefs) {
+		prefs.edit().remove(PREF_KEY_HASH).apply();
+	}
+
+	/** @return whether applied, or false if skipped due to no change since last application. */
+	@WorkerThread boolean applyIfChanged(final SharedPreferences prefs, final DevicePolicies policies) {
+		final String hash = computeHash();
+		if (hash.equals(prefs.getString(PREF_KEY_HASH, null))) {
+			Log.i(TAG, "Skip unchanged cross-profile intent filters (" + mFilters.size() + ")");
+			return false;
+		}
+		prefs.edit().remove(PREF_KEY_HASH).commit();		// In case of interruption below
+		final ProvisioningTracer tracer = ProvisioningTracer.getActive();
+		try (final ProvisioningTracer.Span ignored = tracer != null ? tracer.span("applyCrossProfileIntentFilters", BUDGET_APPLY) : null) {
+			policies.execute(DevicePolicyManager::clearCrossProfileIntentFilters);
+			for (int i = 0; i < mFilters.size(); i ++)
+				policies.addCrossProfileIntentFilter(mFilters.get(i), mFlags.get(i));
+		}
+		prefs.edit().putString(PREF_KEY_HASH, hash).apply();
+		Log.i(TAG, "Applied cross-profile intent filters (" + mFilters.size() + ")");
+		return true;
+	}
+
+	private String computeHash() {
+		final Parcel parcel = Parcel.obtain();
+		try {
+			for (int i = 0; i < mFilters.size(); i ++) {
+				mFilters.get(i).writeToParcel(parcel, 0);
+				parcel.writeInt(mFlags.get(i));
+			}
+			return Base64.encodeToString(MessageDigest.getInstance("SHA-256").digest(parcel.marshall()), Base64.NO_WRAP);
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);		// SHA-256 is always available
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	private final List<IntentFilter> mFilters = new ArrayList<>();
+	private final List<Integer> mFlags = new ArrayList<>();
+
+	private static final String PREF_KEY_HASH = DevicePolicies.PREF_KEY_CROSS_PROFILE_INTENT_FILTERS_HASH;		// Also removed if cleared elsewhere
+	private static final long BUDGET_APPLY = 2_000;
+	private static final String TAG = "Island.CPIF";
+}
@@ -21,8 +21,6 @@ import android.provider.AlarmClock;
 import android.provider.MediaStore;
 import android.util.Log;
 
-import com.oasisfeng.island.util.DevicePolicies;
-
 import static android.app.admin.DevicePolicyManager.FLAG_PARENT_CAN_ACCESS_MANAGED;
 import static android.speech.RecognizerIntent.ACTION_RECOGNIZE_SPEECH;
 /**
@@ -43,8 +41,8 @@ class CrossProfileIntentFiltersHelper {
 		void addCrossProfileIntentFilter(IntentFilter filter, int user, int parent_user, int flags);
 	}
 
-	public static void setFilters(final DevicePolicies policies) {
-		setFilters((filter, u, p, f) -> policies.addCrossProfileIntentFilter(filter, FLAG_PARENT_CAN_ACCESS_MANAGED), 0, 0);
+	public static void setFilters(final CrossProfileIntentFilterSet filters) {
+		setFilters((filter, u, p, f) -> filters.add(filter, FLAG_PARENT_CAN_ACCESS_MANAGED), 0, 0);
 	}
 
 	public static void setFilters(PackageManager pm, int parentUserId, int managedProfileUserId) {
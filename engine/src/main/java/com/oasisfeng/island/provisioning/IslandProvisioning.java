@@ -48,6 +48,8 @@ import com.oasisfeng.island.util.OwnerUser;
 import com.oasisfeng.island.util.ProfileUser;
 import com.oasisfeng.island.util.Users;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -92,12 +94,25 @@ public class IslandProvisioning extends IntentService {
 	 *   POST_PROVISION_REV - Island provision is up-to-date, nothing to do.
 	 */
 	private static final String PREF_KEY_PROVISION_STATE = "provision.state";
+	/** Completed tasks of the ongoing (or interrupted) provisioning and re-provisioning, see {@link ProvisioningPipeline} */
+	private static final String PREF_KEY_PROVISION_TASKS = PREF_KEY_PROVISION_STATE + ".tasks";
+	private static final String PREF_KEY_REPROVISION_TASKS = PREF_KEY_PROVISION_STATE + ".reprovision.tasks";
 	/** Provision type: 0 (default) - Managed provisioning, 1 - Manual provisioning */
 	private static final String PREF_KEY_PROFILE_PROVISION_TYPE = "profile.provision.type";
 	/** The revision for post-provisioning. Increase this const value if post-provisioning needs to be re-performed after upgrade. */
 	private static final int POST_PROVISION_REV = 9;
 	private static final String AFFILIATION_ID = "com.oasisfeng.island";
 	private static final String SCHEME_PACKAGE = "package";
+	private static final String EXTRA_REDELIVERED = "redelivered";
+	private static final String TASK_MANUAL_PROVISIONING = "ProfileOwnerManualProvisioning";
+	private static final String TASK_CRITICAL_APPS = "enableCriticalAppsIfNeeded";
+	/** Time budgets (in milliseconds) of provisioning steps, exceeding of which is logged by {@link ProvisioningTracer} */
+	private static final long BUDGET_MANUAL_PROVISIONING = 5_000;
+	private static final long BUDGET_POST_PROVISIONING = 3_000;
+	private static final long BUDGET_CRITICAL_APPS = 2_000;
+	private static final long BUDGET_HIDE_APPS = 1_000;
+	private static final long BUDGET_LAUNCHER_SETUP = 500;
+	private static final long BUDGET_PROFILE_ENABLING = 1_000;
 
 	@OwnerUser @ProfileUser public static void start(final Context context, final @Nullable String action) {
 		final Intent intent = new Intent(action).setComponent(new ComponentName(context, IslandProvisioning.class));
@@ -112,6 +127,11 @@ public class IslandProvisioning extends IntentService {
 		start(context, intent.getAction());
 	}
 
+	@Override public int onStartCommand(@Nullable final Intent intent, final int flags, final int start_id) {
+		if (intent != null && (flags & START_FLAG_REDELIVERY) != 0) intent.putExtra(EXTRA_REDELIVERED, true);	// To resume the interrupted provisioning
+		return super.onStartCommand(intent, flags, start_id);
+	}
+
 	@OwnerUser @ProfileUser @WorkerThread @Override protected void onHandleIntent(@Nullable final Intent intent) {
 		if (intent == null) return;		// Should never happen since we already setIntentRedelivery(true).
 		proceed(this, intent);
@@ -127,7 +147,7 @@ public class IslandProvisioning extends IntentService {
 		}
 		if (DevicePolicyManager.ACTION_PROVISION_MANAGED_PROFILE.equals(intent.getAction())) {		// Borrow this activity intent for re-provision.
 			Log.d(TAG, "Re-provisioning Island.");
-			reprovisionManagedProfile(context);
+			reprovisionManagedProfile(context, intent.getBooleanExtra(EXTRA_REDELIVERED, false));
 			Toasts.show(context, R.string.toast_reprovision_done, Toast.LENGTH_SHORT);
 			return;
 		}
@@ -141,33 +161,43 @@ public class IslandProvisioning extends IntentService {
 		Analytics.$().setProperty(Analytics.Property.IslandSetup, is_manual_setup ? "manual" : "managed");
 		Log.d(TAG, "Provisioning profile (" + Users.toId(android.os.Process.myUserHandle()) + (is_manual_setup ? ", manual) " : ")"));
 
+		final boolean resuming = intent.getBooleanExtra(EXTRA_REDELIVERED, false);
 		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 		prefs.edit().putInt(PREF_KEY_PROVISION_STATE, 1).putInt(PREF_KEY_PROFILE_PROVISION_TYPE, is_manual_setup ? 1 : 0).apply();
 		final DevicePolicies policies = new DevicePolicies(context);
 		if (is_manual_setup) {		// Do the similar job of ManagedProvisioning here.
 			Log.d(TAG, "Manual provisioning");
 			Analytics.$().event("profile_post_provision_manual_start").send();
-			ProfileOwnerManualProvisioning.start(context, policies);	// Mimic the stock managed profile provision
 		} else Analytics.$().event("profile_post_provision_start").send();
 
-		Log.d(TAG, "Start post-provisioning.");
+		final ProvisioningTracer tracer = ProvisioningTracer.start(context, is_manual_setup ? "manual" : "managed");
 		try {
-			startProfileOwnerPostProvisioning(context, policies);
-		} catch (final Exception e) {
-			Analytics.$().event("profile_post_provision_error").with(Analytics.Param.ITEM_NAME, e.toString()).send();
-			Analytics.$().report(e);
-		}
-
-		// Prepare critical apps
-		enableCriticalAppsIfNeeded(context, policies);
-		// Disable unnecessarily enabled apps
-		if (! Users.isOwner()) hideUnnecessaryAppsInManagedProfile(context);	// Users.isProfile() does not work before setProfileEnabled().
-
-		setupLauncherActivityInIsland(context);     // Must before setProfileEnabled() is invoked.
-
-		if (! is_manual_setup) {	// Enable the profile here, launcher will show all apps inside.
-			Log.d(TAG, "Enable profile now.");
-			policies.execute(DevicePolicyManager::setProfileEnabled);
+			final ProvisioningPipeline pipeline = new ProvisioningPipeline(prefs, PREF_KEY_PROVISION_TASKS, resuming, tracer);
+			final String[] after_manual_provisioning = is_manual_setup ? new String[] { TASK_MANUAL_PROVISIONING } : new String[0];
+			if (is_manual_setup) pipeline.task(TASK_MANUAL_PROVISIONING, BUDGET_MANUAL_PROVISIONING,
+					() -> ProfileOwnerManualProvisioning.start(context, policies));	// Mimic the stock managed profile provision
+			pipeline.task("startProfileOwnerPostProvisioning", BUDGET_POST_PROVISIONING, () -> {
+				Log.d(TAG, "Start post-provisioning.");
+				try {
+					startProfileOwnerPostProvisioning(context, policies);
+				} catch (final Exception e) {
+					Analytics.$().event("profile_post_provision_error").with(Analytics.Param.ITEM_NAME, e.toString()).send();
+					Analytics.$().report(e);
+				}
+			});
+			// Prepare critical apps, after non-required apps are hidden by manual provisioning.
+			pipeline.task(TASK_CRITICAL_APPS, BUDGET_CRITICAL_APPS, () -> enableCriticalAppsIfNeeded(context, policies), after_manual_provisioning);
+			// Disable unnecessarily enabled apps, after critical apps are enabled.
+			if (! Users.isOwner()) pipeline.task("hideUnnecessaryAppsInManagedProfile", BUDGET_HIDE_APPS,
+					() -> hideUnnecessaryAppsInManagedProfile(context), TASK_CRITICAL_APPS);	// Users.isProfile() does not work before setProfileEnabled().
+			pipeline.task("setupLauncherActivityInIsland", BUDGET_LAUNCHER_SETUP, () -> setupLauncherActivityInIsland(context));
+			if (! is_manual_setup) pipeline.task("setProfileEnabled", BUDGET_PROFILE_ENABLING, () -> {	// Enable the profile here, launcher will show all apps inside.
+				Log.d(TAG, "Enable profile now.");
+				policies.execute(DevicePolicyManager::setProfileEnabled);
+			}, pipeline.all());		// Must be the last, setupLauncherActivityInIsland() must be done before it.
+			pipeline.run();
+		} finally {
+			tracer.finish();
 		}
 		Analytics.$().event("profile_post_provision_done").send();
 
@@ -209,6 +239,12 @@ public class IslandProvisioning extends IntentService {
 		super.onDestroy();
 	}
 
+	/** Print the timeline of last provisioning, via "adb shell dumpsys activity service com.oasisfeng.island/.provisioning.IslandProvisioning" */
+	@Override protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+		final String timeline = ProvisioningTracer.readLastTimeline(this);
+		writer.println(timeline != null ? timeline : "No provisioning timeline.");
+	}
+
 	@ProfileUser private static boolean launchMainActivityInOwnerUser(final Context context) {
 		// Never use CrossProfileApps, which is not working here on Android 10+ and some Android 9 devices (e.g. EMUI).
 		final LauncherApps apps = (LauncherApps) context.getSystemService(Context.LAUNCHER_APPS_SERVICE);
@@ -253,17 +289,31 @@ public class IslandProvisioning extends IntentService {
 	}
 
 	@OwnerUser @ProfileUser @WorkerThread public static void reprovisionManagedProfile(final Context context) {
+		reprovisionManagedProfile(context, false);
+	}
+
+	/** @param resume whether to resume the interrupted re-provisioning, instead of starting over */
+	@OwnerUser @ProfileUser @WorkerThread private static void reprovisionManagedProfile(final Context context, final boolean resume) {
 		final DevicePolicies policies = new DevicePolicies(context);
 		final boolean owner = Users.isOwner();
-		if (! owner) {
-			// Always perform all the required provisioning steps covered by stock ManagedProvisioning, in case something is missing there.
-			// This is also required for manual provision via ADB shell.
-			policies.execute(DevicePolicyManager::clearCrossProfileIntentFilters);
-			final int provision_type = PreferenceManager.getDefaultSharedPreferences(context).getInt(PREF_KEY_PROFILE_PROVISION_TYPE, 0);
-			if (provision_type == 1) ProfileOwnerManualProvisioning.start(context, policies);	// Simulate the stock managed profile provision
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		if (! owner && ! resume) CrossProfileIntentFilterSet.invalidate(prefs);	// Explicit re-provisioning always re-applies them, in case altered externally.
+		final ProvisioningTracer tracer = ProvisioningTracer.start(context, "reprovision");
+		try {
+			final ProvisioningPipeline pipeline = new ProvisioningPipeline(prefs, PREF_KEY_REPROVISION_TASKS, resume, tracer);
+			if (! owner) {
+				// Always perform all the required provisioning steps covered by stock ManagedProvisioning, in case something is missing there.
+				// This is also required for manual provision via ADB shell. (cross-profile intent filters are re-applied in post-provisioning)
+				final int provision_type = prefs.getInt(PREF_KEY_PROFILE_PROVISION_TYPE, 0);
+				if (provision_type == 1) pipeline.task(TASK_MANUAL_PROVISIONING, BUDGET_MANUAL_PROVISIONING,
+						() -> ProfileOwnerManualProvisioning.start(context, policies));	// Simulate the stock managed profile provision
+			}
+			pipeline.task("startProfileOwnerPostProvisioning", BUDGET_POST_PROVISIONING, () -> startProfileOwnerPostProvisioning(context, policies));
+			if (! owner) pipeline.task("setupLauncherActivityInIsland", BUDGET_LAUNCHER_SETUP, () -> setupLauncherActivityInIsland(context));
+			pipeline.run();
+		} finally {
+			tracer.finish();
 		}
-		startProfileOwnerPostProvisioning(context, policies);
-		if (! owner) setupLauncherActivityInIsland(context);
 	}
 
 	public static void startDeviceAndProfileOwnerSharedPostProvisioning(final Context context, final DevicePolicies policies) {
@@ -336,39 +386,46 @@ public class IslandProvisioning extends IntentService {
 
 	@ProfileUser private static void startProfileOwnerPostProvisioningForNonOwnerProfile(final Context context, final DevicePolicies policies) {
 		policies.addUserRestrictionIfNeeded(context, UserManager.ALLOW_PARENT_PROFILE_APP_LINKING);
-		enableAdditionalForwarding(context, policies);
+
+		// All cross-profile intent filters of us are applied as a whole, skipped if unchanged.
+		final CrossProfileIntentFilterSet filters = new CrossProfileIntentFilterSet();
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		if (prefs.getInt(PREF_KEY_PROFILE_PROVISION_TYPE, 0) == 1) CrossProfileIntentFiltersHelper.setFilters(filters);	// Default ones of manual provisioning
+		enableAdditionalForwarding(context, filters);
 
 		// Prepare ServiceShuttle
-		policies.addCrossProfileIntentFilter(new IntentFilter(ServiceShuttle.ACTION_BIND_SERVICE), FLAG_MANAGED_CAN_ACCESS_PARENT);
+		filters.add(new IntentFilter(ServiceShuttle.ACTION_BIND_SERVICE), FLAG_MANAGED_CAN_ACCESS_PARENT);
 
 		// Prepare API
-		policies.addCrossProfileIntentFilter(IntentFilters.forAction(Api.latest.ACTION_FREEZE).withDataSchemes("package", "packages"), FLAG_MANAGED_CAN_ACCESS_PARENT);
-		policies.addCrossProfileIntentFilter(IntentFilters.forAction(Api.latest.ACTION_UNFREEZE).withDataSchemes("package", "packages"), FLAG_MANAGED_CAN_ACCESS_PARENT);
-		policies.addCrossProfileIntentFilter(IntentFilters.forAction(Api.latest.ACTION_LAUNCH).withDataSchemes("package", "intent"), FLAG_MANAGED_CAN_ACCESS_PARENT);
+		filters.add(IntentFilters.forAction(Api.latest.ACTION_FREEZE).withDataSchemes("package", "packages"), FLAG_MANAGED_CAN_ACCESS_PARENT);
+		filters.add(IntentFilters.forAction(Api.latest.ACTION_UNFREEZE).withDataSchemes("package", "packages"), FLAG_MANAGED_CAN_ACCESS_PARENT);
+		filters.add(IntentFilters.forAction(Api.latest.ACTION_LAUNCH).withDataSchemes("package", "intent"), FLAG_MANAGED_CAN_ACCESS_PARENT);
 
 		// For Greenify (non-root automated hibernation for apps in Island)
-		policies.addCrossProfileIntentFilter(IntentFilters.forAction(Settings.ACTION_APPLICATION_DETAILS_SETTINGS).withDataScheme("package"), FLAG_MANAGED_CAN_ACCESS_PARENT);
+		filters.add(IntentFilters.forAction(Settings.ACTION_APPLICATION_DETAILS_SETTINGS).withDataScheme("package"), FLAG_MANAGED_CAN_ACCESS_PARENT);
+
+		filters.applyIfChanged(prefs, policies);
 	}
 
-	@ProfileUser private static void enableAdditionalForwarding(final Context context, final DevicePolicies policies) {
+	@ProfileUser private static void enableAdditionalForwarding(final Context context, final CrossProfileIntentFilterSet filters) {
 		final int FLAGS_BIDIRECTIONAL = FLAG_MANAGED_CAN_ACCESS_PARENT | FLAG_PARENT_CAN_ACCESS_MANAGED;
 		// For sharing across Island (bidirectional)
-		policies.addCrossProfileIntentFilter(new IntentFilter(ACTION_SEND), FLAGS_BIDIRECTIONAL);		// Keep for historical compatibility reason
+		filters.add(new IntentFilter(ACTION_SEND), FLAGS_BIDIRECTIONAL);		// Keep for historical compatibility reason
 		try {
-			policies.addCrossProfileIntentFilter(IntentFilters.forAction(ACTION_SEND).withDataType("*/*"), FLAGS_BIDIRECTIONAL);
-			policies.addCrossProfileIntentFilter(IntentFilters.forAction(ACTION_VIEW).withDataType("*/*"), FLAGS_BIDIRECTIONAL);
-			policies.addCrossProfileIntentFilter(IntentFilters.forAction(ACTION_SEND_MULTIPLE).withDataType("*/*"), FLAGS_BIDIRECTIONAL);
+			filters.add(IntentFilters.forAction(ACTION_SEND).withDataType("*/*"), FLAGS_BIDIRECTIONAL);
+			filters.add(IntentFilters.forAction(ACTION_VIEW).withDataType("*/*"), FLAGS_BIDIRECTIONAL);
+			filters.add(IntentFilters.forAction(ACTION_SEND_MULTIPLE).withDataType("*/*"), FLAGS_BIDIRECTIONAL);
 		} catch (final IntentFilter.MalformedMimeTypeException ignored) {}
 		// For web browser
-		policies.addCrossProfileIntentFilter(IntentFilters.forAction(ACTION_VIEW).withCategory(CATEGORY_BROWSABLE).withDataSchemes("http", "https", "ftp"),
+		filters.add(IntentFilters.forAction(ACTION_VIEW).withCategory(CATEGORY_BROWSABLE).withDataSchemes("http", "https", "ftp"),
 				FLAG_PARENT_CAN_ACCESS_MANAGED);
 		try {	// For Package Installer
-			policies.addCrossProfileIntentFilter(IntentFilters.forActions(ACTION_INSTALL_PACKAGE)   // ACTION_VIEW is already covered above for */*.
+			filters.add(IntentFilters.forActions(ACTION_INSTALL_PACKAGE)   // ACTION_VIEW is already covered above for */*.
 					.withDataScheme(ContentResolver.SCHEME_CONTENT).withDataType("application/vnd.android.package-archive"), FLAGS_BIDIRECTIONAL);
-			policies.addCrossProfileIntentFilter(IntentFilters.forAction(ACTION_INSTALL_PACKAGE).withCategory(context.getPackageName())	// Additional category to bypass system package installer
+			filters.add(IntentFilters.forAction(ACTION_INSTALL_PACKAGE).withCategory(context.getPackageName())	// Additional category to bypass system package installer
 					.withDataSchemes(ContentResolver.SCHEME_CONTENT, SCHEME_PACKAGE), FLAG_MANAGED_CAN_ACCESS_PARENT);	// One-way only
 		} catch (final IntentFilter.MalformedMimeTypeException ignored) {}
-		policies.addCrossProfileIntentFilter(IntentFilters.forActions(IntentCompat.ACTION_SHOW_APP_INFO), FLAG_PARENT_CAN_ACCESS_MANAGED);
+		filters.add(IntentFilters.forActions(IntentCompat.ACTION_SHOW_APP_INFO), FLAG_PARENT_CAN_ACCESS_MANAGED);
 	}
 
 	public IslandProvisioning() {
@@ -27,8 +27,7 @@ class ProfileOwnerManualProvisioning {
 		/* Settings.Secure.MANAGED_PROFILE_CONTACT_REMOTE_SEARCH can be toggled in system Settings - Users & Profiles - Profile Settings */
 		/* DISALLOW_WALLPAPER cannot be changed by profile / device owner. */
 
-		// Set default cross-profile intent-filters
-		CrossProfileIntentFiltersHelper.setFilters(policies);
+		// Default cross-profile intent-filters are applied together with others in IslandProvisioning.startProfileOwnerPostProvisioning().
 	}
 
 	private static final String TAG = ProfileOwnerManualProvisioning.class.getSimpleName();
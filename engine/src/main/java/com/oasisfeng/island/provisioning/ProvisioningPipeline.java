@@ -0,0 +1,118 @@
+package com.oasisfeng.island.provisioning;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Dependency graph of idempotent provisioning tasks. Independent tasks run concurrently on a worker pool.
+ *
+ * Completion of each task is checkpointed in preferences, so that an interrupted provisioning (e.g. process killed)
+ * can be resumed from the incomplete tasks, instead of redoing the completed ones.
+ */
+class ProvisioningPipeline {
+
+	/**
+	 * @param checkpoint_key the key in preferences for completed tasks
+	 * @param resume whether to skip tasks already completed in previous (interrupted) run, otherwise start over.
+	 */
+	ProvisioningPipeline(final SharedPreferences prefs, final String checkpoint_key, final boolean resume, final @Nullable ProvisioningTracer tracer) {
+		mPrefs = prefs;
+		mCheckpointKey = checkpoint_key;
+		mTracer = tracer;
+		if (resume) mCompleted.addAll(prefs.getStringSet(checkpoint_key, Collections.emptySet()));
+		else prefs.edit().remove(checkpoint_key).apply();
+	}
+
+	/**
+	 * @param budget_ms the time budget for tracing, see {@link ProvisioningTracer#span(String, long)}
+	 * @param dependencies names of tasks to complete before this task, which must be added before.
+	 */
+	ProvisioningPipeline task(final String name, final long budget_ms, final Runnable task, final String... dependencies) {
+		for (final String dependency : dependencies)
+			if (! mTasks.containsKey(dependency)) throw new IllegalArgumentException("Unknown dependency " + dependency + " of " + name);
+		if (mTasks.put(name, new Task(name, budget_ms, task, dependencies)) != null) throw new IllegalArgumentException("Duplicate task: " + name);
+		return this;
+	}
+
+	/** @return names of all tasks added so far, for a task depending on all of them. */
+	String[] all() { return mTasks.keySet().toArray(new String[0]); }
+
+	/**
+	 * Run all incomplete tasks, each once its dependencies are completed. Tasks depending on a failed one are not run.
+	 *
+	 * @throws RuntimeException the failure of task, after all the other runnable tasks are finished.
+	 */
+	@WorkerThread void run() {
+		final Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>(mTasks.size());
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_PARALLEL_TASKS, MAX_PARALLEL_TASKS, 10, SECONDS,
+				new LinkedBlockingQueue<>(), r -> new Thread(r, "Island.Provision"));
+		try {
+			for (final Task task : mTasks.values()) {		// In the order of addition, which is also a topological order.
+				if (mCompleted.contains(task.name)) {
+					Log.i(TAG, "Skip completed task: " + task.name);
+					futures.put(task.name, CompletableFuture.completedFuture(null));
+					continue;
+				}
+				final CompletableFuture<?>[] dependencies = new CompletableFuture<?>[task.dependencies.length];
+				for (int i = 0; i < dependencies.length; i ++) dependencies[i] = futures.get(task.dependencies[i]);
+				futures.put(task.name, CompletableFuture.allOf(dependencies).thenRunAsync(() -> execute(task), executor));
+			}
+			CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).join();
+		} catch (final CompletionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw e;
+		} finally {
+			executor.shutdown();
+		}
+		mPrefs.edit().remove(mCheckpointKey).apply();	// All completed
+	}
+
+	private void execute(final Task task) {
+		if (mTracer != null) try (final ProvisioningTracer.Span ignored = mTracer.span(task.name, task.budget)) {
+			task.runnable.run();
+		} else task.runnable.run();
+
+		synchronized (mCompleted) {
+			mCompleted.add(task.name);
+			mPrefs.edit().putStringSet(mCheckpointKey, new HashSet<>(mCompleted)).commit();	// Synchronously, since the process may be killed anytime.
+		}
+	}
+
+	private static class Task {
+
+		Task(final String name, final long budget, final Runnable runnable, final String[] dependencies) {
+			this.name = name; this.budget = budget; this.runnable = runnable; this.dependencies = dependencies;
+		}
+
+		final String name;
+		final long budget;
+		final Runnable runnable;
+		final String[] dependencies;
+	}
+
+	private final SharedPreferences mPrefs;
+	private final String mCheckpointKey;
+	private final @Nullable ProvisioningTracer mTracer;
+	private final Map<String, Task> mTasks = new LinkedHashMap<>();
+	private final Set<String> mCompleted = new HashSet<>();
+
+	private static final int MAX_PARALLEL_TASKS = 3;
+	private static final String TAG = "Island.Provision";
+}
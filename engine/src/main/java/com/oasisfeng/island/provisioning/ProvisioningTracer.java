@@ -0,0 +1,174 @@
+package com.oasisfeng.island.provisioning;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.oasisfeng.island.provisioning.task.ProvisionLogger;
+import com.oasisfeng.island.util.DevicePolicies;
+import com.oasisfeng.island.util.Users;
+import com.oasisfeng.perf.Stopwatch;
+import com.oasisfeng.perf.Ticker;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Tracer of provisioning, recording a span for each step and for each call to {@link android.app.admin.DevicePolicyManager}
+ * (via {@link DevicePolicies}) within, nested by thread.
+ *
+ * The timeline of last provisioning is persisted in device-protected storage, to diagnose slow provisioning after the fact.
+ * Steps (and calls) exceeding their budget are logged as warning via {@link ProvisionLogger}.
+ */
+class ProvisioningTracer implements DevicePolicies.CallInterceptor {
+
+	/** Start tracing, until {@link #finish()}. Only one tracer is active at a time. */
+	static ProvisioningTracer start(final Context context, final String name) {
+		final ProvisioningTracer tracer = new ProvisioningTracer(context, name);
+		DevicePolicies.setCallInterceptor(tracer);
+		sActive = tracer;
+		return tracer;
+	}
+
+	/** @return the tracer started and not yet finished, or null if none */
+	static @Nullable ProvisioningTracer getActive() { return sActive; }
+
+	/** @param budget_ms the time budget of this step, or 0 for none. Exceeding it is logged as warning. */
+	Span span(final String name, final long budget_ms) {
+		return new Span(name, budget_ms);
+	}
+
+	@Override public <T> T intercept(final Supplier<T> call) {
+		try (final Span ignored = new Span("DPM@" + findCaller(), DPM_CALL_BUDGET)) {
+			return call.get();
+		}
+	}
+
+	/** Stop tracing and persist the timeline. */
+	void finish() {
+		DevicePolicies.setCallInterceptor(null);
+		if (sActive == this) sActive = null;
+		mRoot.close();
+		final String timeline = toString();
+		Log.i(TAG, timeline);
+		final AtomicFile file = getTimelineFile(mContext);
+		FileOutputStream out = null;
+		try {
+			out = file.startWrite();
+			out.write(timeline.getBytes(StandardCharsets.UTF_8));
+			file.finishWrite(out);
+		} catch (final IOException e) {
+			if (out != null) file.failWrite(out);
+			Log.e(TAG, "Error writing provisioning timeline", e);
+		}
+	}
+
+	/** @return the timeline of last provisioning, or null if none */
+	static @Nullable String readLastTimeline(final Context context) {
+		try {
+			return new String(getTimelineFile(context).readFully(), StandardCharsets.UTF_8);
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	private static AtomicFile getTimelineFile(final Context context) {
+		final Context storage = context.isDeviceProtectedStorage() ? context : context.createDeviceProtectedStorageContext();
+		return new AtomicFile(storage.getFileStreamPath(TIMELINE_FILE_NAME));
+	}
+
+	/** @return the first frame outside of DevicePolicies and this tracer, in the form of "Class.method:line" */
+	private static String findCaller() {
+		final StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+		for (final StackTraceElement frame : stack) {
+			final String cls = frame.getClassName();
+			if (cls.startsWith("java.") || cls.startsWith("dalvik.") || cls.startsWith(DevicePolicies.class.getName())
+					|| cls.startsWith(ProvisioningTracer.class.getName())) continue;
+			return cls.substring(cls.lastIndexOf('.') + 1) + "." + frame.getMethodName() + ":" + frame.getLineNumber();
+		}
+		return "?";
+	}
+
+	@Override public String toString() {
+		final StringBuilder buffer = new StringBuilder(64 * mSpans.size());
+		buffer.append("# Provisioning (").append(mName).append(") at ").append(DateFormat.getDateTimeInstance().format(new Date(mStartTime)))
+				.append(", user ").append(Users.toId(Process.myUserHandle())).append(", SDK ").append(SDK_INT).append(", ").append(Build.FINGERPRINT).append('\n');
+		synchronized (mSpans) {
+			for (final Span span : mSpans) {
+				buffer.append(String.format(Locale.US, "+%6d ms ", span.mStartOffset / 1000));
+				for (int i = 0; i < span.mDepth; i ++) buffer.append("  ");
+				buffer.append(span.mName).append(": ").append(span.mStopwatch);
+				if (! span.mThread.equals(mRoot.mThread)) buffer.append(" [").append(span.mThread).append(']');
+				if (span.isOverBudget()) buffer.append(" (over budget ").append(span.mBudget).append(" ms)");
+				buffer.append('\n');
+			}
+		}
+		return buffer.toString();
+	}
+
+	class Span implements AutoCloseable {
+
+		@Override public void close() {
+			if (! mStopwatch.isRunning()) return;
+			mStopwatch.stop();
+			mThreadDepth.get()[0] --;
+			if (isOverBudget()) ProvisionLogger.logw(mName + " took " + mStopwatch.elapsed(MILLISECONDS) + " ms, over budget " + mBudget + " ms");
+		}
+
+		private boolean isOverBudget() { return mBudget > 0 && mStopwatch.elapsed(MILLISECONDS) > mBudget; }
+
+		private Span(final String name, final long budget_ms) {
+			mName = name;
+			mBudget = budget_ms;
+			mThread = Thread.currentThread().getName();
+			mStartOffset = mClock.elapsed(MICROSECONDS);
+			mDepth = mThreadDepth.get()[0] ++;
+			synchronized (mSpans) { mSpans.add(this); }
+			mStopwatch = Stopwatch.createStarted(TICKER_ELAPSED_REALTIME);
+		}
+
+		private final String mName;
+		private final String mThread;
+		private final int mDepth;
+		private final long mBudget;
+		private final long mStartOffset;	// in microseconds
+		private final Stopwatch mStopwatch;
+	}
+
+	private ProvisioningTracer(final Context context, final String name) {
+		mContext = context;
+		mName = name;
+		mRoot = new Span(name, 0);
+	}
+
+	private final Context mContext;
+	private final String mName;
+	private final long mStartTime = System.currentTimeMillis();
+	private final Stopwatch mClock = Stopwatch.createStarted(TICKER_ELAPSED_REALTIME);
+	private final List<Span> mSpans = new ArrayList<>();
+	private final ThreadLocal<int[]> mThreadDepth = ThreadLocal.withInitial(() -> new int[] { Thread.currentThread() == mOwnerThread ? 0 : 1 });
+	private final Thread mOwnerThread = Thread.currentThread();
+	private final Span mRoot;
+
+	private static volatile @Nullable ProvisioningTracer sActive;
+	private static final Ticker TICKER_ELAPSED_REALTIME = new Ticker() { @Override public long read() { return SystemClock.elapsedRealtimeNanos(); }};
+	private static final long DPM_CALL_BUDGET = 500;
+	private static final String TIMELINE_FILE_NAME = "provisioning_timeline.txt";
+	private static final String TAG = "Island.Provision.Trace";
+}
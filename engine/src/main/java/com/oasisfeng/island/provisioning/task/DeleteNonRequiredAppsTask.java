@@ -47,11 +47,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -168,11 +176,9 @@ public class DeleteNonRequiredAppsTask {
 
         PackageDeleteObserver packageDeleteObserver =
                 new PackageDeleteObserver(packagesToDelete.size());
-        for (String packageName : packagesToDelete) {
-            ProvisionLogger.logd("Deleting package [" + packageName + "] as user " + mUserId);
-            mPm.deletePackageAsUser(packageName, packageDeleteObserver,
-                    PackageManager.DELETE_SYSTEM_APP, mUserId);
-        }
+        ProvisionLogger.logd("Deleting packages " + packagesToDelete + " as user " + mUserId);
+        mPm.deletePackagesAsUser(packagesToDelete, packageDeleteObserver,
+                PackageManager.DELETE_SYSTEM_APP, mUserId);
     }
 
     private Set<String> getPackagesToDelete() {
@@ -220,19 +226,15 @@ public class DeleteNonRequiredAppsTask {
      * Remove all packages from the set that are not installed.
      */
     private void removeNonInstalledPackages(Set<String> packages) {
-        Set<String> toBeRemoved = new HashSet<String>();
-        for (String packageName : packages) {
-            try {
-                PackageInfo info = mPm.getPackageInfoAsUser(packageName, 0 /* default flags */,
-                        mUserId);
-                if (info == null) {
-                    toBeRemoved.add(packageName);
-                }
-            } catch (PackageManager.NameNotFoundException e) {
-                toBeRemoved.add(packageName);
-            }
+        if (packages.isEmpty()) {
+            return;
+        }
+        // One bulk query instead of one query per package.
+        Set<String> installedPackages = new HashSet<String>();
+        for (PackageInfo info : mPm.getInstalledPackagesAsUser(0 /* default flags */, mUserId)) {
+            installedPackages.add(info.packageName);
         }
-        packages.removeAll(toBeRemoved);
+        packages.retainAll(installedPackages);
     }
 
     /**
@@ -408,24 +410,50 @@ public class DeleteNonRequiredAppsTask {
         static final int DELETE_FAILED_INTERNAL_ERROR = -1;
         PackageManager(final Context base) { super(base.getPackageManager()); mDevicePolicies = new DevicePolicies(base); }
 
-        void deletePackageAsUser(String pkg, PackageDeleteObserver observer, int flags, int mUserId) {
+        /** Batch version of deletePackageAsUser(), with packages hidden in parallel and then suspended at once. */
+        void deletePackagesAsUser(Collection<String> pkgs, PackageDeleteObserver observer, int flags, int mUserId) {
             // Hidden + suspended, to indicate a deleted system app.
-			mDevicePolicies.invoke(DevicePolicyManager::setApplicationHidden, pkg, true);
-            if (mDevicePolicies.invoke(DevicePolicyManager::isApplicationHidden, pkg)) {
-                mDevicePolicies.invoke(DevicePolicyManager::setPackagesSuspended, new String[] { pkg }, true);
-                observer.packageDeleted(pkg, DELETE_SUCCEEDED);
-            } else observer.packageDeleted(pkg, DELETE_FAILED_INTERNAL_ERROR);
+            final List<String> pkg_list = new ArrayList<>(pkgs);
+            final List<Callable<Boolean>> hiding = new ArrayList<>(pkg_list.size());
+            for (final String pkg : pkg_list) hiding.add(() -> {
+                mDevicePolicies.invoke(DevicePolicyManager::setApplicationHidden, pkg, true);
+                return mDevicePolicies.invoke(DevicePolicyManager::isApplicationHidden, pkg);
+            });
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_HIDING, pkg_list.size()));
+            List<Future<Boolean>> results = Collections.emptyList();
+            try {
+                results = executor.invokeAll(hiding);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
+            }
+
+            final boolean[] hidden = new boolean[pkg_list.size()];
+            final List<String> hidden_pkgs = new ArrayList<>(pkg_list.size());
+            for (int i = 0; i < results.size(); i ++) try {
+                if (hidden[i] = results.get(i).get()) hidden_pkgs.add(pkg_list.get(i));
+            } catch (final ExecutionException | CancellationException | InterruptedException e) {
+                ProvisionLogger.loge("Error hiding " + pkg_list.get(i), e);
+            }
+            if (! hidden_pkgs.isEmpty()) {
+                final String[] failed = mDevicePolicies.invoke(DevicePolicyManager::setPackagesSuspended, hidden_pkgs.toArray(new String[0]), true);
+                if (failed != null && failed.length > 0) ProvisionLogger.logw("Failed to suspend " + Arrays.toString(failed));
+            }
+            for (int i = 0; i < hidden.length; i ++)
+                observer.packageDeleted(pkg_list.get(i), hidden[i] ? DELETE_SUCCEEDED : DELETE_FAILED_INTERNAL_ERROR);
         }
 
-        PackageInfo getPackageInfoAsUser(final String pkg, @SuppressWarnings("SameParameterValue") final int flags, final int user) throws NameNotFoundException {
-			return mBase.getPackageInfo(pkg, flags);
-		}
+        List<PackageInfo> getInstalledPackagesAsUser(@SuppressWarnings("SameParameterValue") final int flags, final int user) {
+            return mBase.getInstalledPackages(flags);
+        }
 
         List<ResolveInfo> queryIntentActivitiesAsUser(final Intent intent, final int flags, final int user) {
         	return mBase.queryIntentActivities(intent, flags);
         }
 
         private final DevicePolicies mDevicePolicies;
+        private static final int MAX_PARALLEL_HIDING = 4;
     }
 
     private static IInputMethodManager getIInputMethodManager(Context context) {
@@ -23,7 +23,7 @@ import android.widget.Toast;
 /**
  * Utility class to centralize the logging in the Provisioning app.
  */
-class ProvisionLogger {
+public class ProvisionLogger {
     private static final String TAG = "ManagedProvisioning";
     private static final boolean LOG_ENABLED = true;
 
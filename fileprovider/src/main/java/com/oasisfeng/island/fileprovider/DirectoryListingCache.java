@@ -0,0 +1,238 @@
+package com.oasisfeng.island.fileprovider;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Cache of directory listings (child documents) queried from the delegated provider, with read-ahead of sub-directories.
+ *
+ * The original cursor is kept open while cached, so that the provider keeps observing changes in that directory,
+ * whose notification (intercepted by the proxy) invalidates the cache entry. Each query is served with a copy.
+ */
+class DirectoryListingCache {
+
+	static boolean isCacheable(final Uri uri) {
+		final List<String> segments = uri.getPathSegments();
+		return ! segments.isEmpty() && "children".equals(segments.get(segments.size() - 1));
+	}
+
+	/**
+	 * @param target_uri URI in the delegated provider
+	 * @param args_key key representing all the query arguments other than URI
+	 * @param cancellation_signal of the caller, only applicable to the query of <code>target_uri</code> itself
+	 * @param querier to query the delegated provider with the same arguments, for the specified URI and cancellation signal
+	 */
+	@Nullable Cursor query(final Uri target_uri, final String args_key, final @Nullable CancellationSignal cancellation_signal,
+			final BiFunction<Uri, CancellationSignal, Cursor> querier) {
+		final String key = target_uri + "\n" + args_key;
+		Entry entry = get(key);
+		if (entry != null) {
+			mNumHits ++;
+			return entry.copy();
+		}
+		mNumMisses ++;
+		final Cursor cursor = querier.apply(target_uri, cancellation_signal);
+		if (cursor == null) return null;
+		entry = put(key, cursor);
+		if (entry == null) return cursor;		// Not cacheable
+
+		mPrefetcher.getQueue().clear();			// Prefetch for the previous directory is no longer relevant.
+		mPrefetchSignal.cancel();
+		prefetchSubDirectories(target_uri, args_key, querier, entry, mPrefetchSignal = new CancellationSignal());
+		return entry.copy();
+	}
+
+	/**
+	 * Invalidate listings of the document (directory) and its descendants, upon change notification from the delegated provider.
+	 * All listings are invalidated if the notification is not about a document (e.g. roots).
+	 */
+	void invalidate(final Uri target_uri) {
+		final String doc_id = getDocumentIdOrNull(target_uri);
+		synchronized (mEntries) {
+			final Iterator<Entry> iterator = mEntries.values().iterator();
+			while (iterator.hasNext()) {
+				final Entry entry = iterator.next();
+				final String entry_doc_id = getDocumentIdOrNull(entry.mCursor.getNotificationUri());
+				if (doc_id != null && entry_doc_id != null && ! isSameOrDescendant(entry_doc_id, doc_id)) continue;
+				iterator.remove();
+				entry.close();
+			}
+		}
+	}
+
+	/** Document ID in ExternalStorageProvider is "root:path", with the path of descendants beginning with "path/". */
+	private static boolean isSameOrDescendant(final String doc_id, final String ancestor_doc_id) {
+		if (! doc_id.startsWith(ancestor_doc_id)) return false;
+		if (doc_id.length() == ancestor_doc_id.length() || ancestor_doc_id.endsWith(":")) return true;	// Same, or descendant of root
+		return doc_id.charAt(ancestor_doc_id.length()) == '/';
+	}
+
+	private static @Nullable String getDocumentIdOrNull(final @Nullable Uri uri) {
+		if (uri == null) return null;
+		try {
+			return DocumentsContract.getDocumentId(uri);	// Also works for children URI, with or without tree.
+		} catch (final IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	void invalidateAll() {
+		synchronized (mEntries) {
+			for (final Entry entry : mEntries.values()) entry.close();
+			mEntries.clear();
+		}
+	}
+
+	private void prefetchSubDirectories(final Uri parent_uri, final String args_key, final BiFunction<Uri, CancellationSignal, Cursor> querier,
+			final Entry entry, final CancellationSignal signal) {
+		final int id_column = entry.mColumns.indexOf(Document.COLUMN_DOCUMENT_ID), mime_column = entry.mColumns.indexOf(Document.COLUMN_MIME_TYPE);
+		if (id_column < 0 || mime_column < 0) return;
+		int count = 0;
+		for (final Object[] row : entry.mRows) {
+			if (! Document.MIME_TYPE_DIR.equals(row[mime_column]) || ! (row[id_column] instanceof String)) continue;
+			final String doc_id = (String) row[id_column];
+			final Uri uri = DocumentsContract.isTreeUri(parent_uri) ? DocumentsContract.buildChildDocumentsUriUsingTree(parent_uri, doc_id)
+					: DocumentsContract.buildChildDocumentsUri(parent_uri.getAuthority(), doc_id);
+			final String key = uri + "\n" + args_key;
+			mPrefetcher.execute(() -> {
+				if (signal.isCanceled() || get(key) != null) return;
+				try {
+					final Cursor cursor = querier.apply(uri, signal);
+					if (cursor != null && put(key, cursor) == null) cursor.close();
+				} catch (final RuntimeException e) {		// Including OperationCanceledException
+					Log.d(TAG, "Error prefetching " + uri + ": " + e);
+				}
+			});
+			if (++ count >= MAX_PREFETCH_PER_DIRECTORY) break;
+		}
+	}
+
+	private @Nullable Entry get(final String key) {
+		synchronized (mEntries) {
+			final Entry entry = mEntries.get(key);
+			if (entry == null) return null;
+			if (SystemClock.elapsedRealtime() - entry.mTime < TTL) return entry;
+			mEntries.remove(key);
+			entry.close();
+			return null;
+		}
+	}
+
+	/** @return the cached entry, or null if not cacheable (in which case the cursor is not consumed) */
+	private @Nullable Entry put(final String key, final Cursor cursor) {
+		final Bundle extras = cursor.getExtras();
+		if (extras != null && extras.getBoolean(DocumentsContract.EXTRA_LOADING)) return null;	// Partial result
+		final Entry entry = new Entry(cursor);
+		synchronized (mEntries) {
+			final Entry previous = mEntries.put(key, entry);
+			if (previous != null) previous.close();
+		}
+		return entry;
+	}
+
+	/** Key for query arguments in Bundle (since Android O) */
+	static String toArgsKey(final @Nullable String[] projection, final @Nullable Bundle args) {
+		final StringBuilder key = new StringBuilder(Arrays.toString(projection));
+		if (args != null) for (final String name : new TreeSet<>(args.keySet()))
+			key.append('|').append(name).append('=').append(Arrays.deepToString(new Object[] { args.get(name) }));
+		return key.toString();
+	}
+
+	static String toArgsKey(final @Nullable String[] projection, final @Nullable String selection, final @Nullable String[] selection_args, final @Nullable String sort_order) {
+		return Arrays.toString(projection) + '|' + selection + '|' + Arrays.toString(selection_args) + '|' + sort_order;
+	}
+
+	private class Entry {
+
+		/** @return a snapshot copy, with change notification registered as the original. */
+		Cursor copy() {
+			final MatrixCursor copy = new MatrixCursor(mColumns.toArray(new String[0]), mRows.size());
+			for (final Object[] row : mRows) copy.addRow(row);
+			copy.setExtras(mExtras);
+			final Uri notification_uri = mCursor.getNotificationUri();
+			if (notification_uri != null) copy.setNotificationUri(mResolver, mToProxyUri.apply(notification_uri));
+			return copy;
+		}
+
+		void close() { mCursor.close(); }
+
+		Entry(final Cursor cursor) {
+			mCursor = cursor;
+			mColumns = Arrays.asList(cursor.getColumnNames());
+			mRows = new ArrayList<>(cursor.getCount());
+			final int num_columns = mColumns.size();
+			if (cursor.moveToFirst()) do {
+				final Object[] row = new Object[num_columns];
+				for (int i = 0; i < num_columns; i ++) switch (cursor.getType(i)) {
+				case Cursor.FIELD_TYPE_INTEGER: row[i] = cursor.getLong(i); break;
+				case Cursor.FIELD_TYPE_FLOAT: row[i] = cursor.getDouble(i); break;
+				case Cursor.FIELD_TYPE_STRING: row[i] = cursor.getString(i); break;
+				case Cursor.FIELD_TYPE_BLOB: row[i] = cursor.getBlob(i); break;
+				}
+				mRows.add(row);
+			} while (cursor.moveToNext());
+			mExtras = cursor.getExtras();
+			mTime = SystemClock.elapsedRealtime();
+		}
+
+		private final Cursor mCursor;		// Kept open for change observation by the delegated provider
+		private final List<String> mColumns;
+		private final List<Object[]> mRows;
+		private final Bundle mExtras;
+		private final long mTime;
+	}
+
+	@Override public String toString() { return "DirectoryListingCache{size=" + mEntries.size() + ", hits=" + mNumHits + ", misses=" + mNumMisses + "}"; }
+
+	DirectoryListingCache(final ContentResolver resolver, final UnaryOperator<Uri> to_proxy_uri) {
+		mResolver = resolver;
+		mToProxyUri = to_proxy_uri;
+		mPrefetcher.allowCoreThreadTimeOut(true);
+	}
+
+	private final ContentResolver mResolver;
+	private final UnaryOperator<Uri> mToProxyUri;
+	private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {	// LRU
+		@Override protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+			if (size() <= MAX_ENTRIES) return false;
+			eldest.getValue().close();
+			return true;
+		}
+	};
+	private final ThreadPoolExecutor mPrefetcher = new ThreadPoolExecutor(1, 1, 10, SECONDS, new LinkedBlockingQueue<>(), r -> {
+		final Thread thread = new Thread(r, "FileShuttle.Prefetch");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+	private volatile CancellationSignal mPrefetchSignal = new CancellationSignal();		// Separate from the caller's, not to be canceled along with the query of parent
+	private volatile long mNumHits, mNumMisses;		// Statistics only, races are tolerable.
+
+	private static final int MAX_ENTRIES = 64;
+	private static final int MAX_PREFETCH_PER_DIRECTORY = 8;
+	private static final long TTL = 60_000;		// In case change notification is missing
+	private static final String TAG = "FileShuttle.Cache";
+}
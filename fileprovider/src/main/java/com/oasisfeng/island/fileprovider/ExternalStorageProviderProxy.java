@@ -40,7 +40,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
-import java.util.function.Supplier;
+import java.util.function.BiFunction;
 
 import static android.Manifest.permission.MANAGE_DOCUMENTS;
 import static android.content.Context.CONTEXT_IGNORE_SECURITY;
@@ -69,21 +69,28 @@ public class ExternalStorageProviderProxy extends ContentProvider {
 	private static final String EXTRA_TARGET_URI = "android.content.extra.TARGET_URI";
 
 	@Override public @Nullable Cursor query(final @NonNull Uri uri, final @Nullable String[] projection, final @Nullable String selection, final @Nullable String[] selectionArgs, final @Nullable String sortOrder) {
-		return processQuery(uri, () -> mDelegate.query(toTargetUri(uri), projection, selection, selectionArgs, sortOrder));
+		return processQuery(uri, DirectoryListingCache.toArgsKey(projection, selection, selectionArgs, sortOrder), null,
+				(target, signal) -> mDelegate.query(target, projection, selection, selectionArgs, sortOrder, signal));
 	}
 
 	@Override public @Nullable Cursor query(final @NonNull Uri uri, final @Nullable String[] projection, final @Nullable String selection, final @Nullable String[] selectionArgs, final @Nullable String sortOrder, final @Nullable CancellationSignal cancellationSignal) {
-		return processQuery(uri, () -> mDelegate.query(toTargetUri(uri), projection, selection, selectionArgs, sortOrder, cancellationSignal));
+		return processQuery(uri, DirectoryListingCache.toArgsKey(projection, selection, selectionArgs, sortOrder), cancellationSignal,
+				(target, signal) -> mDelegate.query(target, projection, selection, selectionArgs, sortOrder, signal));
 	}
 
 	@RequiresApi(O) @Override public Cursor query(final @NonNull Uri uri, final String[] projection, final Bundle queryArgs, final CancellationSignal cancellationSignal) {
-		return processQuery(uri, () -> mDelegate.query(toTargetUri(uri), projection, queryArgs, cancellationSignal));
+		return processQuery(uri, DirectoryListingCache.toArgsKey(projection, queryArgs), cancellationSignal,
+				(target, signal) -> mDelegate.query(target, projection, queryArgs, signal));
 	}
 
-	private @Nullable Cursor processQuery(final Uri uri, final Supplier<Cursor> procedure) {
+	/** @param querier to query the delegated provider with target URI and cancellation signal */
+	private @Nullable Cursor processQuery(final Uri uri, final String args_key, final @Nullable CancellationSignal cancellation_signal,
+			final BiFunction<Uri, CancellationSignal, Cursor> querier) {
 		final Cursor cursor;
 		try {
-			cursor = procedure.get();
+			final Uri target_uri = toTargetUri(uri);
+			cursor = mListingCache != null && DirectoryListingCache.isCacheable(target_uri)
+					? mListingCache.query(target_uri, args_key, cancellation_signal, querier) : querier.apply(target_uri, cancellation_signal);
 		} catch (final RuntimeException e) {
 			final String message = "Error during query (in user " + Users.toId(Process.myUserHandle()) + "): " + uri;
 			try {
@@ -102,22 +109,27 @@ public class ExternalStorageProviderProxy extends ContentProvider {
 	}
 
 	@Override public @Nullable Uri insert(final @NonNull Uri uri, final @Nullable ContentValues values) {
+		invalidateListingCache();
 		return mDelegate.insert(toTargetUri(uri), values);
 	}
 
 	@Override public int bulkInsert(final @NonNull Uri uri, final @NonNull ContentValues[] values) {
+		invalidateListingCache();
 		return mDelegate.bulkInsert(toTargetUri(uri), values);
 	}
 
 	@Override public int delete(final @NonNull Uri uri, final @Nullable String selection, final @Nullable String[] selectionArgs) {
+		invalidateListingCache();
 		return mDelegate.delete(toTargetUri(uri), selection, selectionArgs);
 	}
 
 	@Override public int update(final @NonNull Uri uri, final @Nullable ContentValues values, final @Nullable String selection, final @Nullable String[] selectionArgs) {
+		invalidateListingCache();
 		return mDelegate.update(toTargetUri(uri), values, selection, selectionArgs);
 	}
 
 	@Override public @NonNull ContentProviderResult[] applyBatch(final @NonNull ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+		invalidateListingCache();
 		return mDelegate.applyBatch(operations);	// FIXME: toTargetUri(uri)
 	}
 
@@ -154,6 +166,7 @@ public class ExternalStorageProviderProxy extends ContentProvider {
 			final Uri target_uri = extras.getParcelable(EXTRA_TARGET_URI);
 			if (target_uri != null) extras.putParcelable(EXTRA_TARGET_URI, toTargetUri(target_uri));
 		}
+		invalidateListingCache();		// Most methods (create, rename, move, delete, etc) change documents.
 		final Bundle result = mDelegate.call(method, arg, extras);
 		if (result != null) {
 			final Uri uri = result.getParcelable(EXTRA_URI);
@@ -162,6 +175,10 @@ public class ExternalStorageProviderProxy extends ContentProvider {
 		return result;
 	}
 
+	private void invalidateListingCache() {
+		if (mListingCache != null) mListingCache.invalidateAll();
+	}
+
 	private Uri toTargetUri(final Uri uri) {
 		return mTargetAuthority != null ? replaceAuthorityInUri(uri, mTargetAuthority) : uri;
 	}
@@ -193,14 +210,17 @@ public class ExternalStorageProviderProxy extends ContentProvider {
 
 				return new ContentResolverWrapper(context, super.getContentResolver()) {
 					@Override public void notifyChange(final @NonNull Uri uri, final @Nullable ContentObserver observer) {
+						if (mListingCache != null) mListingCache.invalidate(uri);
 						resolver.notifyChange(toProxyUri(uri), observer);
 					}
 
 					@Override public void notifyChange(final @NonNull Uri uri, final @Nullable ContentObserver observer, final int flags) {
+						if (mListingCache != null) mListingCache.invalidate(uri);
 						resolver.notifyChange(toProxyUri(uri), observer, flags);
 					}
 
 					@Override public void notifyChange(final @NonNull Uri uri, final @Nullable ContentObserver observer, final boolean syncToNetwork) {
+						if (mListingCache != null) mListingCache.invalidate(uri);
 						resolver.notifyChange(toProxyUri(uri), observer, syncToNetwork);
 					}
 				};
@@ -244,6 +264,7 @@ public class ExternalStorageProviderProxy extends ContentProvider {
 			mDelegate = (ContentProvider) ExternalStorageProvider.newInstance();
 			mDelegate.attachInfo(wrapWithResolverWrapper(context), target_provider);
 			// onCreate() is indirectly invoked by attachInfo().
+			mListingCache = new DirectoryListingCache(context().getContentResolver(), this::toProxyUri);
 			return true;
 		} catch (final PackageManager.NameNotFoundException/* Should not happen */| ReflectiveOperationException e) {
 			Analytics.$().logAndReport(TAG, "Failed to init due to incompatibility.", e);
@@ -288,6 +309,7 @@ public class ExternalStorageProviderProxy extends ContentProvider {
 	private ProviderInfo mProviderInfo;
 	private @Nullable String mTargetAuthority;
 	private ContentProvider mDelegate;
+	private volatile @Nullable DirectoryListingCache mListingCache;		// Only if delegated to ExternalStorageProvider
 
 	private static final String TAG = "FileShuttle";
 
@@ -332,7 +354,6 @@ public class ExternalStorageProviderProxy extends ContentProvider {
 		@Override public String getString(final int column_index) {
 			if (mAppendSummaryColumn && column_index == super.getColumnCount()) return mSummary;
 			final String value = super.getString(column_index);
-			Log.d(TAG, "Cursor.getString(" + getColumnName(column_index) + ") = " + value);
 			return column_index == mTitleColumnIndex ? PREFIX_SHUTTLE_NAME + value : value;
 		}
 
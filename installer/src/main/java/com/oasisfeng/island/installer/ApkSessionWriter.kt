@@ -0,0 +1,94 @@
+package com.oasisfeng.island.installer
+
+import android.content.pm.PackageInstaller
+import android.os.ParcelFileDescriptor
+import android.os.SystemClock
+import android.util.Log
+import androidx.annotation.WorkerThread
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Write APK (and splits) into [PackageInstaller.Session] in a single pass over the source.
+ *
+ * Sizes of regular files are passed to [PackageInstaller.Session.openWrite] for pre-allocation.
+ * (The stream returned is a bridge over socket rather than the staged file, thus not eligible for zero-copy transfer.)
+ * Splits are written in parallel.
+ */
+internal class ApkSessionWriter(private val session: PackageInstaller.Session, private val listener: ProgressListener?) {
+
+	fun interface ProgressListener { fun onProgress(bytes: Long, total: Long, bytesPerSecond: Long) }
+
+	@WorkerThread @Throws(IOException::class) fun write(sources: Map<String, InputStream>) {
+		val entries = sources.entries.toList()
+		val sizes = entries.map { it.value.fileSizeOrUnknown() }
+		mTotal = if (sizes.any { it < 0 }) -1 else sizes.sum()
+		mStartTime = SystemClock.elapsedRealtime().also { mLastReportTime.set(it) }
+
+		if (entries.size == 1) writeOne(entries[0].key, entries[0].value, sizes[0])
+		else entries.mapIndexed { i, (name, input) -> sExecutor.submit { writeOne(name, input, sizes[i]) }}.also { futures ->
+			try { futures.forEach { it.get() } }
+			catch (e: ExecutionException) {
+				futures.forEach { it.cancel(true) }
+				when (val cause = e.cause) { is IOException -> throw cause; is RuntimeException -> throw cause; else -> throw IOException(cause) }
+			}}
+
+		val elapsed = SystemClock.elapsedRealtime() - mStartTime
+		Log.i(TAG, "Written ${entries.size} APK(s) in ${elapsed}ms, ${mTransferred.get()} bytes (${mTransferred.get() * 1000 / maxOf(elapsed, 1) / 1024} KB/s)")
+	}
+
+	private fun writeOne(name: String, input: InputStream, size: Long) {
+		session.openWrite(name, 0, size).use { output ->
+			copy(input, output)
+			session.fsync(output)
+		}
+	}
+
+	private fun copy(input: InputStream, output: OutputStream) {
+		val buffer = ByteArray(BUFFER_SIZE)
+		while (true) {
+			val count = input.read(buffer)
+			if (count < 0) break
+			output.write(buffer, 0, count)
+			onTransferred(count.toLong())
+		}
+	}
+
+	private fun onTransferred(bytes: Long) {
+		val transferred = mTransferred.addAndGet(bytes)
+		val now = SystemClock.elapsedRealtime(); val last = mLastReportTime.get()
+		if (now - last < PROGRESS_INTERVAL || ! mLastReportTime.compareAndSet(last, now)) return
+		if (mTotal > 0) session.setStagingProgress(transferred.toFloat() / mTotal)
+		listener?.onProgress(transferred, mTotal, transferred * 1000 / maxOf(now - mStartTime, 1))
+	}
+
+	/** @return size of regular file (with the stream at its beginning), or -1 if unknown */
+	private fun InputStream.fileSizeOrUnknown(): Long {
+		// Subclasses of FileInputStream may read only part of the file (e.g. AssetFileDescriptor.AutoInputStream)
+		if (javaClass != FileInputStream::class.java && javaClass != ParcelFileDescriptor.AutoCloseInputStream::class.java) return -1
+		return try { (this as FileInputStream).channel.run { if (position() == 0L) size().takeIf { it > 0 } else null } ?: -1 }
+		catch (e: IOException) { -1 }
+	}
+
+	private var mTotal = -1L
+	private var mStartTime = 0L
+	private val mTransferred = AtomicLong()
+	private val mLastReportTime = AtomicLong()
+
+	companion object {
+		private val sExecutor = ThreadPoolExecutor(MAX_PARALLEL_WRITES, MAX_PARALLEL_WRITES, 10, TimeUnit.SECONDS, LinkedBlockingQueue()) {
+			Thread(it, "ApkSessionWriter") }.apply { allowCoreThreadTimeOut(true) }
+	}
+}
+
+private const val MAX_PARALLEL_WRITES = 4
+private const val BUFFER_SIZE = 65536
+private const val PROGRESS_INTERVAL = 500L
+private const val TAG = "Island.ASW"
@@ -14,6 +14,7 @@ import android.os.Looper
 import android.os.SystemClock
 import android.os.UserHandle
 import android.provider.Settings
+import android.text.format.Formatter
 import com.oasisfeng.android.base.Versions
 import com.oasisfeng.android.content.IntentCompat
 import com.oasisfeng.island.installer.AppInstallerUtils.hasRequestedLegacyExternalStorage
@@ -35,6 +36,14 @@ internal object AppInstallationNotifier {
 			setSubText(install.callerLabel).setGroup(install.caller).setContentText(install.appId).setShowWhen(true) }
 	}
 
+	@JvmStatic fun onInstallProgress(context: Context, sessionId: Int, install: AppInstallInfo, bytes: Long, total: Long, bytesPerSecond: Long) {
+		val progress = context.getString(R.string.notification_install_progress,
+				Formatter.formatShortFileSize(context, bytes), Formatter.formatShortFileSize(context, bytesPerSecond))
+		showNotification(context, sessionId, makeProcedureText(context, install, completed = false)) {
+			setOnlyAlertOnce(true).setOngoing(true).setSubText(install.callerLabel).setContentText(progress)
+			if (total > 0) setProgress(PROGRESS_MAX, (bytes * PROGRESS_MAX / total).toInt(), false) else setProgress(0, 0, true) }
+	}
+
 	@JvmStatic fun onPackageInfoReady(context: Context, sessionId: Int, install: AppInstallInfo, current: PackageInfo?): CharSequence? {
 		val details = StringBuilder()
 		if (install.details == null) {      // Details may be pre-filled for split APK.
@@ -125,5 +134,6 @@ internal object AppInstallationNotifier {
 				context.getString(R.string.action_show_app_settings), action)
 	}
 
+	private const val PROGRESS_MAX = 1000
 	private const val TAG = "Island.AIN"
 }
@@ -16,8 +16,10 @@ import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.StrictMode;
 import android.preference.PreferenceManager;
@@ -42,6 +44,8 @@ import com.oasisfeng.java.utils.IoUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -54,6 +58,7 @@ import java.util.Optional;
 import java.util.Set;
 
 import kotlin.Unit;
+import kotlin.jvm.functions.Function1;
 
 import static android.Manifest.permission.MANAGE_DOCUMENTS;
 import static android.Manifest.permission.REQUEST_INSTALL_PACKAGES;
@@ -88,7 +93,7 @@ import static java.util.Objects.requireNonNull;
  */
 public class AppInstallerActivity extends CallerAwareActivity {
 
-	private static final int STREAM_BUFFER_SIZE = 65536;
+	private static final int SPOOL_BUFFER_SIZE = 65536;
 	private static final String PREF_KEY_DIRECT_INSTALL_ALLOWED_CALLERS = "direct_install_allowed_callers";
 	private static final String SCHEME_PACKAGE = "package";
 	private static final String EXTRA_ORIGINATING_UID = "android.intent.extra.ORIGINATING_UID";		// Intent.EXTRA_ORIGINATING_UID
@@ -98,6 +103,40 @@ public class AppInstallerActivity extends CallerAwareActivity {
 		if (! prepare()) finish();
 	}
 
+	private @Nullable ParcelFileDescriptor openFileDescriptorIfSupported(final Uri uri) {
+		try {
+			return getContentResolver().openFileDescriptor(uri, "r");
+		} catch (final FileNotFoundException e) {
+			return null;	// Fallback to stream, in case the provider does not support file descriptor.
+		}
+	}
+
+	/** Spool the non-seekable source into local file (read only once), analyze it by random access, then run <code>next</code> on main thread. */
+	private void spoolAndAnalyze(final InputStream input, final Function1<PackageInfo, Unit> callback, final Runnable next) {
+		AsyncTask.execute(() -> {
+			File file = null;
+			try {
+				file = File.createTempFile("install", ".apk", getCacheDir());
+				try (final OutputStream output = new FileOutputStream(file)) {
+					final byte[] buffer = new byte[SPOOL_BUFFER_SIZE];
+					int count;
+					while ((count = input.read(buffer)) != - 1) output.write(buffer, 0, count);
+				}
+				if (isDestroyed()) { file.delete(); return; }
+				mSpooledApk = file;
+				ApkAnalyzer.analyzeAsync(this, ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY), info -> {
+					callback.invoke(info);
+					runOnUiThread(next);
+					return Unit.INSTANCE;
+				});
+			} catch (final IOException e) {
+				Log.w(TAG, "Error reading " + getIntent().getData(), e);
+				if (file != null && file != mSpooledApk) file.delete();
+				runOnUiThread(() -> fallbackToSystemPackageInstaller("stream_error", e));
+			} finally { IoUtils.closeQuietly(input); }
+		});
+	}
+
 	private boolean prepare() {
 		final Intent intent = getIntent();
 		final Uri data = intent.getData();
@@ -131,9 +170,8 @@ public class AppInstallerActivity extends CallerAwareActivity {
 			install.setMode(CLONE);
 			install.setAppId(cloningAppId);
 			install.setAppLabel(Apps.of(this).getAppName(cloningAppId));
-		} else try {   // InputStream must be opened here synchronously, otherwise "SecurityException: Permission Denial".
-			final InputStream input = getContentResolver().openInputStream(data);
-			if (input != null) ApkAnalyzer.analyzeAsync(this, input, info -> {
+		} else try {   // File descriptor must be opened here synchronously, otherwise "SecurityException: Permission Denial".
+			final Function1<PackageInfo, Unit> callback = info -> {
 				if (info != null) {
 					final ApplicationInfo app = info.applicationInfo; final String appId = info.packageName;
 					install.setAppId(appId);
@@ -156,13 +194,28 @@ public class AppInstallerActivity extends CallerAwareActivity {
 				install.setDetails(AppInstallationNotifier.onPackageInfoReady(this, mSessionId,
 						install, Apps.of(this).getPackageInfo(install.getAppId(), MATCH_UNINSTALLED_PACKAGES)));
 
-				AppInstallerStatusReceiver.createCallback(this, install, mSessionId);  // Sync AppInstallInfo by updating PendingIntent
+				if (mSessionId != 0) {		// Otherwise analyzed before the session is created.
+					AppInstallerStatusReceiver.createCallback(this, install, mSessionId);  // Sync AppInstallInfo by updating PendingIntent
 
-				getPackageManager().getPackageInstaller().updateSessionAppLabel(mSessionId, install.getAppLabel());
+					getPackageManager().getPackageInstaller().updateSessionAppLabel(mSessionId, install.getAppLabel());
+				}
 				return Unit.INSTANCE;
-			});
-		} catch (final IOException e) { Log.w(TAG, "Error opening " + data, e); }
+			};
+			final ParcelFileDescriptor fd = openFileDescriptorIfSupported(data);
+			if (fd != null && fd.getStatSize() > 0) ApkAnalyzer.analyzeAsync(this, fd, callback);	// Random access to only the entries needed
+			else {	// Not seekable, the analysis must complete before proceeding, for the session parameters and confirmation.
+				final InputStream input = fd != null ? new ParcelFileDescriptor.AutoCloseInputStream(fd) : getContentResolver().openInputStream(data);
+				if (input != null) {
+					spoolAndAnalyze(input, callback, () -> { if (! isDestroyed() && ! proceed(data, caller, silent_install)) finish(); });
+					return true;
+				}
+			}
+		} catch (final IOException | RuntimeException e) { Log.w(TAG, "Error opening " + data, e); }
+		return proceed(data, caller, silent_install);
+	}
 
+	private boolean proceed(final Uri data, final String caller, final boolean silent_install) {
+		final AppInstallInfo install = mInstallInfo;
 		if (! silent_install) {     // PackageInstaller requires confirmation, thus no need for pre-confirmation on our side.
 			performInstall(data, null);
 			return true;
@@ -201,7 +254,17 @@ public class AppInstallerActivity extends CallerAwareActivity {
 
 	@Override protected void onDestroy() {
 		super.onDestroy();
-		if (mSession != null) { mSession.abandon(); mSession.close(); }
+		abandonSession();
+		if (mSpooledApk != null) mSpooledApk.delete();
+	}
+
+	/** Abandon the session not yet committed, with its progress notification */
+	private void abandonSession() {
+		final PackageInstaller.Session session = mSession;
+		if (session == null) return;
+		mSession = null;
+		session.abandon(); session.close();
+		AppInstallationNotifier.cancel(this, mSessionId);
 	}
 
 	private void addAlwaysAllowedCallerPackage(final String pkg) {
@@ -233,7 +296,11 @@ public class AppInstallerActivity extends CallerAwareActivity {
 						final String split = info.splitPublicSourceDirs[i];
 						input_streams.put(SDK_INT >= O ? info.splitNames[i] : "split" + i, new FileInputStream(split));
 					}
-			} else input_streams.put(stream_name, requireNonNull(getContentResolver().openInputStream(uri)));
+			} else if (mSpooledApk != null) input_streams.put(stream_name, new FileInputStream(mSpooledApk));
+			else {
+				final ParcelFileDescriptor fd = openFileDescriptorIfSupported(uri);		// File size known for pre-allocation
+				input_streams.put(stream_name, fd != null ? new ParcelFileDescriptor.AutoCloseInputStream(fd) : requireNonNull(getContentResolver().openInputStream(uri)));
+			}
 		} catch(final IOException | RuntimeException e) {		// SecurityException may be thrown by ContentResolver.openInputStream().
 			Log.w(TAG, "Error opening " + uri + " for reading.\nTo launch Island app installer, " +
 					"please ensure data URI is accessible by Island, either exposed by content provider or world-readable (on pre-N)", e);
@@ -248,24 +315,33 @@ public class AppInstallerActivity extends CallerAwareActivity {
 		if (mInstallInfo.getAppLabel() != null) params.setAppLabel(mInstallInfo.getAppLabel());
 		if (mInstallInfo.getCallerUid() != Process.INVALID_UID) params.setOriginatingUid(mInstallInfo.getCallerUid());
 		if (SDK_INT >= O) params.setInstallReason(PackageManager.INSTALL_REASON_USER);
+		final PackageInstaller.Session session;
 		try {
-			mSession = installer.openSession(mSessionId = installer.createSession(params));
-			for (final Map.Entry<String, InputStream> entry : input_streams.entrySet())
-				try (final OutputStream out = mSession.openWrite(entry.getKey(), 0, - 1)) {
-					final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
-					final InputStream input = entry.getValue();
-					int count;
-					while ((count = input.read(buffer)) != - 1) out.write(buffer, 0, count);
-					mSession.fsync(out);
-				}
+			mSessionId = installer.createSession(params);
+			session = mSession = installer.openSession(mSessionId);
 		} catch (final IOException | RuntimeException e) {
 			Log.e(TAG, "Error preparing installation", e);
+			for (final Map.Entry<String, InputStream> entry : input_streams.entrySet()) IoUtils.closeQuietly(entry.getValue());
 			fallbackToSystemPackageInstaller("session", e);
 			return;
-		} finally {
-			for (final Map.Entry<String, InputStream> entry : input_streams.entrySet()) IoUtils.closeQuietly(entry.getValue());
 		}
+		final int session_id = mSessionId;
+		final ApkSessionWriter writer = new ApkSessionWriter(session, (bytes, total, bytes_per_second) -> {
+			if (mSession == session) AppInstallationNotifier.onInstallProgress(this, session_id, mInstallInfo, bytes, total, bytes_per_second); });
+		AsyncTask.execute(() -> {
+			try {
+				writer.write(input_streams);
+				runOnUiThread(() -> { if (mSession == session) commitSession(); });	// Unless abandoned in the meantime
+			} catch (final IOException | RuntimeException e) {
+				Log.e(TAG, "Error writing installation session", e);
+				runOnUiThread(() -> { if (mSession == session) fallbackToSystemPackageInstaller("session", e); });
+			} finally {
+				for (final Map.Entry<String, InputStream> entry : input_streams.entrySet()) IoUtils.closeQuietly(entry.getValue());
+			}
+		});
+	}
 
+	private void commitSession() {
 		final PendingIntent callback = AppInstallerStatusReceiver.createCallback(this, mInstallInfo, mSessionId);
 		mSession.commit(callback.getIntentSender());
 		mSession.close();
@@ -278,6 +354,7 @@ public class AppInstallerActivity extends CallerAwareActivity {
 	}
 
 	private void fallbackToSystemPackageInstaller(final String reason, final @Nullable Exception e) {
+		abandonSession();
 		final Intent intent = new Intent(getIntent()).setPackage(null).setComponent(null);
 		Analytics.$().event("installer_fallback").with(LOCATION, intent.getDataString()).with(ITEM_CATEGORY, reason).with(CONTENT, e != null ? e.toString() : null).send();
 		for (final String category : Optional.ofNullable(intent.getCategories()).orElse(Collections.emptySet())) intent.removeCategory(category);
@@ -373,7 +450,8 @@ public class AppInstallerActivity extends CallerAwareActivity {
 	}
 
 	private AppInstallInfo mInstallInfo;
-	private PackageInstaller.Session mSession;
+	private @Nullable File mSpooledApk;		// Local copy of non-seekable source
+	private volatile PackageInstaller.Session mSession;		// Also checked by the writer thread
 	private int mSessionId;
 
 	private static final String TAG = "Island.AIA";
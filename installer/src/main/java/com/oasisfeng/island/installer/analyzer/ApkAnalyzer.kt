@@ -9,7 +9,9 @@ import android.content.pm.PackageInfo.INSTALL_LOCATION_PREFER_EXTERNAL
 import android.os.Build.VERSION.SDK_INT
 import android.os.Build.VERSION_CODES.P
 import android.os.Build.VERSION_CODES.Q
+import android.os.ParcelFileDescriptor
 import android.util.Log
+import androidx.annotation.VisibleForTesting
 import androidx.annotation.WorkerThread
 import com.jaredrummler.apkparser.parser.*
 import com.jaredrummler.apkparser.struct.AndroidConstants
@@ -17,9 +19,11 @@ import com.jaredrummler.apkparser.struct.xml.XmlNodeStartTag
 import com.oasisfeng.island.installer.AppInstallerUtils.setRequestedLegacyExternalStorage
 import com.oasisfeng.java.utils.IoUtils
 import java.io.ByteArrayOutputStream
+import java.io.FileInputStream
 import java.io.IOException
 import java.io.InputStream
 import java.nio.ByteBuffer
+import java.nio.channels.Channels
 import java.util.zip.ZipInputStream
 import kotlin.concurrent.thread
 import kotlin.system.measureTimeMillis
@@ -30,13 +34,32 @@ object ApkAnalyzer {
 		thread(start = true, name = TAG) { callback(analyze(context, input)) }
 	}
 
-	@WorkerThread private fun analyze(context: Context, input: InputStream): PackageInfo? {
-		return try { parse(context, input) }
+	/** Analyze with random access if the file descriptor is seekable, otherwise fallback to streaming. */
+	@JvmStatic fun analyzeAsync(context: Context, fd: ParcelFileDescriptor, callback: (PackageInfo?) -> Unit) {
+		thread(start = true, name = TAG) { callback(analyze(context, fd)) }
+	}
+
+	@VisibleForTesting @WorkerThread internal fun analyze(context: Context, input: InputStream): PackageInfo? {
+		return try { parse(context, readEntriesByStreaming(input)) }
 		catch (e: Exception) { null.also { Log.w(TAG, "Error analyzing APK", e) }}
 		finally { IoUtils.closeQuietly(input) }
 	}
 
-	@Throws(IOException::class) @WorkerThread private fun parse(context: Context, input: InputStream): PackageInfo? {
+	@VisibleForTesting @WorkerThread internal fun analyze(context: Context, fd: ParcelFileDescriptor): PackageInfo? {
+		if (fd.statSize <= 0) return analyze(context, ParcelFileDescriptor.AutoCloseInputStream(fd))    // Not a regular file (e.g. pipe)
+		val channel = FileInputStream(fd.fileDescriptor).channel
+		try {
+			val entries = try { ZipEntryReader(channel).read(AndroidConstants.RESOURCE_FILE, AndroidConstants.MANIFEST_FILE) }
+			catch (e: IOException) { Log.w(TAG, "Fallback to streaming due to error reading central directory: $e"); null }
+			if (entries != null) return try { parse(context, entries[AndroidConstants.RESOURCE_FILE] to entries[AndroidConstants.MANIFEST_FILE]) }
+				catch (e: Exception) { null.also { Log.w(TAG, "Error analyzing APK", e) }}
+			channel.position(0)
+			return analyze(context, Channels.newInputStream(channel))
+		} finally { IoUtils.closeQuietly(channel); IoUtils.closeQuietly(fd) }
+	}
+
+	/** @return (resource table, manifest) */
+	@Throws(IOException::class) @WorkerThread private fun readEntriesByStreaming(input: InputStream): Pair<ByteBuffer?, ByteBuffer?> {
 		var resources: ByteBuffer? = null; var manifest: ByteBuffer? = null
 		val zipInput = ZipInputStream(input)
 		do {
@@ -48,6 +71,11 @@ object ApkAnalyzer {
 			else if (entry.name == AndroidConstants.MANIFEST_FILE)
 				manifest = zipInput.readAllToByteBuffer(entry.size)
 		} while (resources == null || manifest == null)
+		return resources to manifest
+	}
+
+	@Throws(IOException::class) @WorkerThread private fun parse(context: Context, entries: Pair<ByteBuffer?, ByteBuffer?>): PackageInfo? {
+		val (resources, manifest) = entries
 		if (manifest == null) return null
 
 		val resourceTableParser = ResourceTableParser(resources).apply {
@@ -90,8 +118,8 @@ object ApkAnalyzer {
 	}
 
 	@Throws(IOException::class) private fun InputStream.readAllToByteBuffer(sizeHint: Long): ByteBuffer {
-		val buf = ByteArray(1024)
-		return ByteArrayOutputStream(sizeHint.toInt()).use { output ->
+		val buf = ByteArray(8192)
+		return ByteArrayOutputStream(if (sizeHint > 0) sizeHint.toInt() else 8192).use { output ->
 			var len: Int; while (read(buf).also { len = it } != -1) output.write(buf, 0, len)
 			ByteBuffer.wrap(output.toByteArray()) }
 	}
@@ -0,0 +1,127 @@
+package com.oasisfeng.island.installer.analyzer
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder.LITTLE_ENDIAN
+import java.nio.channels.FileChannel
+import java.util.zip.DataFormatException
+import java.util.zip.Inflater
+import java.util.zip.ZipException
+
+/**
+ * Random-access reader of selected entries in a zip archive, via its central directory. ZIP64 is not supported.
+ *
+ * Stored entries are memory-mapped without copy, deflated entries are inflated into heap buffers.
+ */
+internal class ZipEntryReader(private val channel: FileChannel) {
+
+	/** @return content of entries found, by name */
+	@Throws(IOException::class) fun read(vararg names: String): Map<String, ByteBuffer>
+			= findEntries(names.toSet()).mapValues { (name, location) -> readEntry(name, location) }
+
+	private class Location(val method: Int, val compressedSize: Long, val size: Long, val localHeaderOffset: Long)
+
+	private fun findEntries(names: Set<String>): Map<String, Location> {
+		val eocd = findEndOfCentralDirectory()
+		val cdSize = eocd.getInt(EOCD_CD_SIZE).toUnsignedLong(); val cdOffset = eocd.getInt(EOCD_CD_OFFSET).toUnsignedLong()
+		if (cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL) throw ZipException("ZIP64 is not supported")
+		if (cdOffset + cdSize > channel.size()) throw ZipException("Invalid central directory")
+		val cd = readFully(cdOffset, cdSize.toInt())
+		val entries = HashMap<String, Location>(names.size)
+		val nameBytes = ByteArray(MAX_NAME_LENGTH)
+		while (cd.remaining() >= CD_HEADER_SIZE && entries.size < names.size) {
+			val start = cd.position()
+			if (cd.getInt(start) != CD_SIGNATURE) throw ZipException("Invalid central directory entry at ${cdOffset + start}")
+			val nameLength = cd.getShort(start + CD_NAME_LENGTH).toUnsignedInt()
+			val extraLength = cd.getShort(start + CD_EXTRA_LENGTH).toUnsignedInt()
+			val commentLength = cd.getShort(start + CD_COMMENT_LENGTH).toUnsignedInt()
+			if (nameLength <= MAX_NAME_LENGTH) {    // Longer names are never what we are looking for.
+				cd.position(start + CD_HEADER_SIZE); cd.get(nameBytes, 0, nameLength)
+				val name = String(nameBytes, 0, nameLength, Charsets.UTF_8)
+				if (name in names) entries[name] = Location(cd.getShort(start + CD_METHOD).toUnsignedInt(),
+						cd.getInt(start + CD_COMPRESSED_SIZE).toUnsignedLong(), cd.getInt(start + CD_SIZE).toUnsignedLong(),
+						cd.getInt(start + CD_LOCAL_HEADER_OFFSET).toUnsignedLong())
+			}
+			cd.position(start + CD_HEADER_SIZE + nameLength + extraLength + commentLength)
+		}
+		return entries
+	}
+
+	private fun findEndOfCentralDirectory(): ByteBuffer {
+		val size = channel.size()
+		if (size < EOCD_SIZE) throw ZipException("Not a zip file")
+		val tailSize = minOf(size, EOCD_SIZE + MAX_COMMENT_LENGTH.toLong()).toInt()
+		val tail = readFully(size - tailSize, tailSize)
+		for (i in tailSize - EOCD_SIZE downTo 0)    // Search backward, the comment at the end may vary in length.
+			if (tail.getInt(i) == EOCD_SIGNATURE) return (tail.position(i) as ByteBuffer).slice().order(LITTLE_ENDIAN)
+		throw ZipException("End of central directory not found")
+	}
+
+	private fun readEntry(name: String, location: Location): ByteBuffer {
+		val header = readFully(location.localHeaderOffset, LOCAL_HEADER_SIZE)
+		if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) throw ZipException("Invalid local header of $name")
+		val dataOffset = location.localHeaderOffset + LOCAL_HEADER_SIZE +
+				header.getShort(LOCAL_NAME_LENGTH).toUnsignedInt() + header.getShort(LOCAL_EXTRA_LENGTH).toUnsignedInt()
+		if (location.size > Int.MAX_VALUE || dataOffset + location.compressedSize > channel.size()) throw ZipException("Invalid entry: $name")
+		return when (location.method) {
+			METHOD_STORED -> channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, location.size)
+			METHOD_DEFLATED -> inflate(readFully(dataOffset, location.compressedSize.toInt()), location.size.toInt(), name)
+			else -> throw ZipException("Unsupported compression method ${location.method} for $name") }
+	}
+
+	private fun inflate(input: ByteBuffer, size: Int, name: String): ByteBuffer {
+		val output = ByteArray(size)
+		val inflater = Inflater(true)
+		try {
+			inflater.setInput(input.array(), input.arrayOffset(), input.remaining())
+			var length = 0
+			while (length < size) {
+				val inflated = inflater.inflate(output, length, size - length)
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break
+				length += inflated
+			}
+			if (length != size) throw ZipException("Size mismatch of $name: $length / $size")
+		} catch (e: DataFormatException) { throw ZipException("Corrupted entry $name: ${e.message}") }
+		finally { inflater.end() }
+		return ByteBuffer.wrap(output)
+	}
+
+	private fun readFully(offset: Long, length: Int): ByteBuffer {
+		val buffer = ByteBuffer.allocate(length).order(LITTLE_ENDIAN)
+		var position = offset
+		while (buffer.hasRemaining()) {
+			val read = channel.read(buffer, position)
+			if (read < 0) throw ZipException("Unexpected end of file")
+			position += read
+		}
+		return buffer.apply { flip() }
+	}
+
+	private fun Int.toUnsignedLong() = toLong() and 0xFFFFFFFFL
+	private fun Short.toUnsignedInt() = toInt() and 0xFFFF
+}
+
+private const val EOCD_SIGNATURE = 0x06054b50
+private const val EOCD_SIZE = 22
+private const val EOCD_CD_SIZE = 12
+private const val EOCD_CD_OFFSET = 16
+private const val MAX_COMMENT_LENGTH = 0xFFFF
+
+private const val CD_SIGNATURE = 0x02014b50
+private const val CD_HEADER_SIZE = 46
+private const val CD_METHOD = 10
+private const val CD_COMPRESSED_SIZE = 20
+private const val CD_SIZE = 24
+private const val CD_NAME_LENGTH = 28
+private const val CD_EXTRA_LENGTH = 30
+private const val CD_COMMENT_LENGTH = 32
+private const val CD_LOCAL_HEADER_OFFSET = 42
+
+private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+private const val LOCAL_HEADER_SIZE = 30
+private const val LOCAL_NAME_LENGTH = 26
+private const val LOCAL_EXTRA_LENGTH = 28
+
+private const val METHOD_STORED = 0
+private const val METHOD_DEFLATED = 8
+private const val MAX_NAME_LENGTH = 256
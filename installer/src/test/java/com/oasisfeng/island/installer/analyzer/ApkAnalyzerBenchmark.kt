@@ -0,0 +1,37 @@
+package com.oasisfeng.island.installer.analyzer
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import com.oasisfeng.benchmark.Benchmark
+import com.oasisfeng.benchmark.Benchmark.params
+import org.junit.AfterClass
+import org.junit.Assert.assertNotNull
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.ByteArrayInputStream
+import java.io.File
+
+/** Parsing of sample APKs in the directory specified by "-Pbenchmark.apk.dir=...", skipped if not specified. */
+@RunWith(RobolectricTestRunner::class) @Config(sdk = [29])
+class ApkAnalyzerBenchmark {
+
+	@Test fun analyze() {
+		val dir = System.getProperty("benchmark.apk.dir")?.let(::File)
+		val apks = dir?.listFiles { file -> file.name.endsWith(".apk") }
+		assumeTrue("No sample APKs, specify directory with -Pbenchmark.apk.dir=...", ! apks.isNullOrEmpty())
+		val context = ApplicationProvider.getApplicationContext<Context>()
+		apks!!.sortedBy { it.name }.forEach { apk ->
+			val bytes = apk.readBytes()     // In memory, to exclude the I/O of storage.
+			assertNotNull("Failed to analyze ${apk.name}", ApkAnalyzer.analyze(context, ByteArrayInputStream(bytes)))
+			sBenchmark.iterations(2, 5, 500).measure("analyze", params("apk", apk.name, "size", bytes.size.toString())) {
+				ApkAnalyzer.analyze(context, ByteArrayInputStream(bytes)) }}
+	}
+
+	companion object {
+		private val sBenchmark = Benchmark("ApkAnalyzerBenchmark")
+		@AfterClass @JvmStatic fun report() { sBenchmark.report() }
+	}
+}
@@ -0,0 +1,58 @@
+package com.oasisfeng.common.app;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.filters.SdkSuppress;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static android.content.pm.PackageManager.MATCH_DISABLED_COMPONENTS;
+import static android.content.pm.PackageManager.MATCH_UNINSTALLED_PACKAGES;
+import static android.os.Build.VERSION_CODES.O;
+import static androidx.test.InstrumentationRegistry.getTargetContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Cold-start benchmark of {@link AppListSnapshot} against the full enumeration of installed apps.
+ */
+@LargeTest @RunWith(AndroidJUnit4.class) @SdkSuppress(minSdkVersion = O)
+public class AppListSnapshotBenchmark {
+
+	private static final int ROUNDS = 10;
+
+	@Test public void benchmarkColdStart() {
+		final Context context = getTargetContext();
+		final PackageManager pm = context.getPackageManager();
+		final AppListSnapshot snapshot = new AppListSnapshot(context);
+		final int sequence_number = snapshot.prepare();
+		final List<ApplicationInfo> apps = pm.getInstalledApplications(MATCH_UNINSTALLED_PACKAGES | MATCH_DISABLED_COMPONENTS);
+		snapshot.save(sequence_number, apps);
+
+		long enumeration_time = 0, snapshot_time = 0;
+		for (int i = 0; i < ROUNDS; i ++) {
+			long start = System.nanoTime();
+			final int count = pm.getInstalledApplications(MATCH_UNINSTALLED_PACKAGES | MATCH_DISABLED_COMPONENTS).size();
+			enumeration_time += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			final List<AppListSnapshot.Entry> entries = new AppListSnapshot(context).load();
+			snapshot_time += System.nanoTime() - start;
+			assertNotNull(entries);
+			assertEquals(count, entries.size());
+		}
+		Log.i(TAG, apps.size() + " apps, full enumeration: " + TimeUnit.NANOSECONDS.toMicros(enumeration_time / ROUNDS)
+				+ "us, snapshot: " + TimeUnit.NANOSECONDS.toMicros(snapshot_time / ROUNDS) + "us");
+	}
+
+	private static final String TAG = "AppListSnapshotBench";
+}
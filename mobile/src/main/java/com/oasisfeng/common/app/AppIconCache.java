@@ -0,0 +1,134 @@
+package com.oasisfeng.common.app;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.oasisfeng.island.util.Hacks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Two-tier cache for app icons: byte-bounded LRU in memory, and pre-rendered bitmaps on disk.
+ *
+ * Icons are keyed by (package, uid, source dir, version code, density and variant), thus naturally invalidated by app update.
+ */
+class AppIconCache {
+
+	private static AppIconCache sInstance;
+
+	@MainThread static AppIconCache get(final Context context) {
+		if (sInstance == null) sInstance = new AppIconCache(context.getApplicationContext());
+		return sInstance;
+	}
+
+	String buildKey(final ApplicationInfo app, final String variant) {
+		return app.packageName + ':' + app.uid + ':' + Hacks.ApplicationInfo_versionCode.get(app) + ':' + mDensity + ':' + variant
+				+ ':' + Integer.toHexString(app.sourceDir != null ? app.sourceDir.hashCode() : 0);
+	}
+
+	@MainThread @Nullable Drawable getFromMemory(final String key) {
+		final Bitmap bitmap = mMemoryCache.get(key);
+		return bitmap != null ? new BitmapDrawable(mResources, bitmap) : null;
+	}
+
+	@WorkerThread @Nullable Drawable loadFromDisk(final String key) {
+		final File file = getFile(key);
+		if (! file.exists()) return null;
+		final Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+		if (bitmap == null) {
+			Log.w(TAG, "Corrupted icon cache: " + key);
+			//noinspection ResultOfMethodCallIgnored
+			file.delete();
+			return null;
+		}
+		mMemoryCache.put(key, bitmap);
+		return new BitmapDrawable(mResources, bitmap);
+	}
+
+	/** Put the rendered icon into memory cache, and write it to disk in background. */
+	@MainThread void put(final String key, final Drawable icon) {
+		final Bitmap bitmap = toBitmap(icon);
+		if (bitmap == null) return;
+		mMemoryCache.put(key, bitmap);
+		AppInfo.LOADER.execute(LoaderScheduler.PRIORITY_BACKGROUND, () -> {
+			final File file = getFile(key), temp = new File(file.getPath() + ".tmp");
+			try (final FileOutputStream out = new FileOutputStream(temp)) {
+				bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+			} catch (final IOException e) {
+				Log.w(TAG, "Error writing icon cache: " + key, e);
+				//noinspection ResultOfMethodCallIgnored
+				temp.delete();
+				return;
+			}
+			if (! temp.renameTo(file)) Log.w(TAG, "Error writing icon cache: " + key);
+		});
+	}
+
+	void trimMemory(final int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) mMemoryCache.evictAll();
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+	}
+
+	private static @Nullable Bitmap toBitmap(final Drawable drawable) {
+		if (drawable instanceof BitmapDrawable) return ((BitmapDrawable) drawable).getBitmap();
+		final int width = drawable.getIntrinsicWidth(), height = drawable.getIntrinsicHeight();
+		if (width <= 0 || height <= 0) return null;
+		final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		final Canvas canvas = new Canvas(bitmap);
+		drawable.setBounds(0, 0, width, height);
+		drawable.draw(canvas);
+		return bitmap;
+	}
+
+	private File getFile(final String key) {
+		return new File(mDiskCacheDir, key.replace(':', '_'));	// Characters in key are all valid for file name.
+	}
+
+	/** Keep the number of icons on disk under limit, by removing the least recently written ones. */
+	@WorkerThread private void trimDiskCache() {
+		final File[] files = mDiskCacheDir.listFiles();
+		if (files == null || files.length <= MAX_DISK_ENTRIES) return;
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (int i = 0; i < files.length - MAX_DISK_ENTRIES; i ++) //noinspection ResultOfMethodCallIgnored
+			files[i].delete();
+		Log.i(TAG, "Trimmed " + (files.length - MAX_DISK_ENTRIES) + " icons on disk");
+	}
+
+	private AppIconCache(final Context context) {
+		mResources = context.getResources();
+		mDensity = mResources.getDisplayMetrics().densityDpi;
+		mDiskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+		//noinspection ResultOfMethodCallIgnored
+		mDiskCacheDir.mkdirs();
+		mMemoryCache = new LruCache<String, Bitmap>((int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE)) {
+			@Override protected int sizeOf(final String key, final Bitmap bitmap) { return bitmap.getAllocationByteCount(); }
+		};
+		AppInfo.LOADER.execute(LoaderScheduler.PRIORITY_BACKGROUND, this::trimDiskCache);
+	}
+
+	private final Resources mResources;
+	private final int mDensity;
+	private final File mDiskCacheDir;
+	private final LruCache<String, Bitmap> mMemoryCache;
+
+	private static final String DISK_CACHE_DIR = "icons";
+	private static final int MAX_DISK_ENTRIES = 2048;
+	private static final String TAG = "AppIconCache";
+}
@@ -1,6 +1,5 @@
 package com.oasisfeng.common.app;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
@@ -8,8 +7,7 @@ import android.content.pm.LauncherApps;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
-import android.text.TextUtils;
+import android.util.Pair;
 
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
@@ -21,10 +19,6 @@ import com.oasisfeng.island.analytics.Analytics;
 import com.oasisfeng.island.util.Hacks;
 import com.oasisfeng.island.util.Users;
 
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
 import java.util.function.Supplier;
 
 import static android.content.Context.LAUNCHER_APPS_SERVICE;
@@ -47,8 +41,7 @@ public class AppInfo extends ApplicationInfo {
 		if (last != null) {
 			mLastInfo = last;
 			last.mLastInfo = null;	// Only store the adjacent last.
-			if (TextUtils.equals(sourceDir, last.sourceDir)) mCachedIcon = last.mCachedIcon;    // Reuse icon if package source-dir is unchanged.
-		}
+		}	// Icon is reused by AppIconCache if package source-dir and version are unchanged.
 	}
 
 	public String getLabel() { return mLabel; }
@@ -86,43 +79,40 @@ public class AppInfo extends ApplicationInfo {
 	interface IconFilter { @UiThread Drawable process(Drawable raw_icon); }
 	interface IconConsumer { @UiThread void accept(Drawable icon); }
 
-	@UiThread void loadUnbadgedIcon(final @Nullable IconFilter filter, final IconConsumer consumer) {
-		loadIcon(filter, consumer, false);
+	@UiThread void loadUnbadgedIcon(final @Nullable IconFilter filter, final IconConsumer consumer, final int priority, final @Nullable LoaderScheduler.Token token) {
+		loadIcon(filter, consumer, false, priority, token);
 	}
 
 	@UiThread public void loadIcon(final @Nullable IconFilter filter, final IconConsumer consumer) {
-		loadIcon(filter, consumer, true);
+		loadIcon(filter, consumer, true, LoaderScheduler.PRIORITY_VISIBLE, null);
 	}
 
-	@SuppressLint("StaticFieldLeak")	// The outer class has no direct reference to Context
-	@UiThread private void loadIcon(final @Nullable IconFilter filter, final IconConsumer consumer, final boolean need_badge) {
-		if (mCachedIcon == null) try {
-			new AsyncTask<Void, Void, Drawable>() {
-
-				@Override protected Drawable doInBackground(final Void... params) {
-					return need_badge ? loadIcon(context().getPackageManager()) : loadUnbadgedIconCompat(context().getPackageManager());
-				}
-
-				@Override protected void onPostExecute(final Drawable drawable) {
-					if (drawable == null) return;        // Might be null if app is currently being removed.
-					final Drawable icon = (filter != null ? filter.process(drawable) : drawable);
-					mCachedIcon = icon;
-					consumer.accept(icon);
-				}
-			}.executeOnExecutor(TASK_THREAD_POOL);
-		} catch (final RejectedExecutionException e) {
-			Analytics.$().report(e);        // For statistics purpose
-		} else consumer.accept(mCachedIcon);
+	@UiThread private void loadIcon(final @Nullable IconFilter filter, final IconConsumer consumer, final boolean need_badge,
+									final int priority, final @Nullable LoaderScheduler.Token token) {
+		final AppIconCache cache = AppIconCache.get(context());
+		final String key = cache.buildKey(this, (need_badge ? "badged" : "unbadged") + (filter != null ? "-filtered" : ""));
+		final Drawable cached = cache.getFromMemory(key);
+		if (cached != null) { consumer.accept(cached); return; }
+		LOADER.submit(priority, token, () -> {
+			final Drawable rendered = cache.loadFromDisk(key);	// Already filtered if rendered from disk cache
+			if (rendered != null) return new Pair<>(rendered, true);
+			final PackageManager pm = context().getPackageManager();
+			final Drawable drawable = need_badge ? loadIcon(pm) : loadUnbadgedIconCompat(pm);
+			return drawable != null ? new Pair<>(drawable, false) : null;	// Might be null if app is currently being removed.
+		}, result -> {
+			if (result == null) { consumer.accept(context().getPackageManager().getDefaultActivityIcon()); return; }	// Not cached
+			if (result.second) { consumer.accept(result.first); return; }
+			final Drawable icon = (filter != null ? filter.process(result.first) : result.first);
+			cache.put(key, icon);
+			consumer.accept(icon);
+		});
 	}
 
 	/** Called by {@link AppListProvider#onTrimMemory(int)} to trim memory when UI is hidden */
-	@CallSuper void trimMemoryOnUiHidden() {
-		mCachedIcon = null;
-	}
+	@CallSuper void trimMemoryOnUiHidden() {}	// Icons are trimmed by AppIconCache.
 
 	/** Called by {@link AppListProvider#onTrimMemory(int)} to trim memory in memory-critical situation */
 	@CallSuper void trimMemoryOnCritical() {
-		mCachedIcon = null;
 		mLastInfo = null;
 		// mLabel is not worth trimming and kept for performance
 	}
@@ -155,13 +145,10 @@ public class AppInfo extends ApplicationInfo {
 
 	protected final AppListProvider<? extends AppInfo> mProvider;
 	private final String mLabel;
-	private Drawable mCachedIcon;
 	/** The information about the same package before its state is changed to this instance, may not always be kept over time */
 	private AppInfo mLastInfo;
-	// Global Thread-pool for app label & icon loading
-	static final ThreadPoolExecutor TASK_THREAD_POOL = new ThreadPoolExecutor(0, 8, 1, SECONDS,
-			new LinkedBlockingQueue<>(1024), r -> new Thread(r, "AppInfo.AsyncTask"), new CallerRunsPolicy()/* In worst case */);
-	static { TASK_THREAD_POOL.allowCoreThreadTimeOut(true); }
+	// Global scheduler for app label & icon loading
+	static final LoaderScheduler LOADER = new LoaderScheduler("AppInfo.Loader", 8, 1024);
 
 	private static final String TAG = "AppInfo";
 }
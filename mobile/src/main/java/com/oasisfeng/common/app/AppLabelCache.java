@@ -1,9 +1,7 @@
 package com.oasisfeng.common.app;
 
-import android.annotation.SuppressLint;
 import android.content.ComponentCallbacks;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
@@ -12,6 +10,7 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.oasisfeng.island.util.Hacks;
 
@@ -32,30 +31,23 @@ class AppLabelCache implements ComponentCallbacks {
 
 		final String pkg = info.packageName;
 		final int version = Hacks.ApplicationInfo_versionCode.get(info);	// 0 if hack is incompatible
-		final String version_key = pkg + KEY_VERSION_CODE_SUFFIX;
-		final int cached_version = mStore.getInt(version_key, -1);
-		final String cached_label = mStore.getString(pkg, null);
-		if (cached_version == version) return cached_label;		// Use cached label only if version is matched.
+		final AppLabelStore.Entry cached = mStore.get(pkg);
+		final String cached_label = cached != null ? cached.label : null;
+		if (cached != null && cached.version == version) return cached_label;		// Use cached label only if version is matched.
 
 		// Load label asynchronously
-		Log.v(TAG, (cached_version == -1 ? "Load: " : "Reload: ") + info.packageName);
-		@SuppressWarnings("unused") @SuppressLint("StaticFieldLeak") final AsyncTask<Void, Void, CharSequence> unused = new AsyncTask<Void, Void, CharSequence>() {
-
-			@Override protected CharSequence doInBackground(final Void... params) {
-				return info.loadLabel(mPackageManager);
-			}
-
-			@Override protected void onPostExecute(final CharSequence raw_label) {
-				final String label = filterString(raw_label.toString());
-				mStore.edit().putInt(version_key, version).putString(pkg, label).apply();
-				if (Objects.equals(label, cached_label)) return;	// Unchanged
-				mCallback.onLabelUpdate(pkg, label);
-			}
-		}.executeOnExecutor(AppInfo.TASK_THREAD_POOL);
+		Log.v(TAG, (cached == null ? "Load: " : "Reload: ") + info.packageName);
+		AppInfo.LOADER.submit(LoaderScheduler.PRIORITY_LABEL, null, () -> info.loadLabel(mPackageManager), raw_label -> {
+			if (raw_label == null) return;		// Failed, retried upon next query
+			final String label = filterString(raw_label.toString());
+			mStore.put(pkg, version, label);
+			if (Objects.equals(label, cached_label)) return;	// Unchanged
+			mCallback.onLabelUpdate(pkg, label);
+		});
 		return null;
 	}
 
-	private static String filterString(final String name) {
+	@VisibleForTesting static String filterString(final String name) {
 		if (name == null) return null;
 		StringBuilder buffer = null;
 		for (int i = 0; i < name.length(); i ++) {
@@ -68,10 +60,7 @@ class AppLabelCache implements ComponentCallbacks {
 	}
 
 	@Override public void onConfigurationChanged(final @NonNull Configuration config) {
-		final String language_tags = config.getLocales().toLanguageTags();
-		final String cache_language_tags = mStore.getString(KEY_LANGUAGE_TAGS, null);
-		if (language_tags.equals(cache_language_tags)) return;
-		mStore.edit().clear().putString(KEY_LANGUAGE_TAGS, language_tags).apply();	// Invalidate the whole cache
+		mStore.switchLocale(config.getLocales().toLanguageTags());		// Labels are cached per locale
 	}
 
 	@Override public void onLowMemory() {}
@@ -79,20 +68,19 @@ class AppLabelCache implements ComponentCallbacks {
 	interface Callback { void onLabelUpdate(String pkg, String label); }
 
 	AppLabelCache(final Context context, final Callback callback) {
-		mStore = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-		if (CLEAR_CACHE_UPON_START) mStore.edit().clear().apply();
+		mStore = new AppLabelStore(context, context.getResources().getConfiguration().getLocales().toLanguageTags());
+		if (CLEAR_CACHE_UPON_START) mStore.clear();
+		AsyncTask.execute(() -> context.deleteSharedPreferences(LEGACY_PREFS_NAME));	// Migrated to AppLabelStore, labels are simply reloaded.
 		mCallback = callback;
 		mPackageManager = context.getPackageManager();
 		context.registerComponentCallbacks(this);		// No un-registration since AppLabelCache is never released.
 		onConfigurationChanged(context.getResources().getConfiguration());
 	}
 
-	private final SharedPreferences mStore;
+	private final AppLabelStore mStore;
 	private final Callback mCallback;
 	private final PackageManager mPackageManager;
 
-	private static final String PREFS_NAME = "app_label_cache";
-	private static final String KEY_LANGUAGE_TAGS = "_language_tags";
-	private static final String KEY_VERSION_CODE_SUFFIX = /* package + */":ver";
+	private static final String LEGACY_PREFS_NAME = "app_label_cache";
 	private static final String TAG = "AppLabelCache";
 }
@@ -0,0 +1,158 @@
+package com.oasisfeng.common.app;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Compact store for app labels, as an append-only log of (version code, package, label) records, one file per locale.
+ *
+ * The log is loaded lazily upon first access, appended upon each update, and compacted in background when obsolete records pile up.
+ */
+class AppLabelStore {
+
+	static class Entry {
+
+		final int version;
+		final String label;
+
+		Entry(final int version, final String label) { this.version = version; this.label = label; }
+	}
+
+	synchronized @Nullable Entry get(final String pkg) {
+		if (mEntries == null) load();
+		return mEntries.get(pkg);
+	}
+
+	synchronized void put(final String pkg, final int version, String label) {
+		if (label.length() > MAX_LABEL_LENGTH)	// Keep it well below the 64KB limit of writeUTF() (3 bytes at most per char)
+			label = label.substring(0, Character.isHighSurrogate(label.charAt(MAX_LABEL_LENGTH - 1)) ? MAX_LABEL_LENGTH - 1 : MAX_LABEL_LENGTH);
+		if (mEntries == null) load();
+		mEntries.put(pkg, new Entry(version, label));
+		final File file = mFile.getBaseFile();
+		mWriter.execute(() -> append(file, pkg, version, label));		// Single writer thread to keep the order of records
+	}
+
+	synchronized void clear() {
+		mEntries = new HashMap<>();
+		final AtomicFile file = mFile;
+		mWriter.execute(() -> compact(file, new HashMap<>()));
+	}
+
+	/** Switch to the store for specified locale. Files for other locales are deleted upon next compaction. */
+	synchronized void switchLocale(final String language_tags) {
+		final AtomicFile file = new AtomicFile(new File(mDir, FILE_PREFIX + Integer.toHexString(language_tags.hashCode())));
+		if (file.getBaseFile().equals(mFile.getBaseFile())) return;
+		mFile = file;
+		mEntries = null;	// Reload lazily
+	}
+
+	private void load() {
+		final Map<String, Entry> entries = mEntries = new HashMap<>();
+		int num_records = 0;
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(mFile.openRead()))) {
+			if (in.readInt() != MAGIC) throw new IOException("Bad format");
+			while (true) {
+				final int version;
+				try { version = in.readInt(); } catch (final EOFException e) { break; }		// End of log
+				final String pkg = in.readUTF(), label = in.readUTF();
+				entries.put(pkg, new Entry(version, label));
+				num_records ++;
+			}
+		} catch (final FileNotFoundException e) {
+			num_records = -1;	// Not created yet
+		} catch (final IOException e) {		// Including truncated record (by process being killed in the middle of appending)
+			Log.w(TAG, "Error loading " + mFile.getBaseFile() + ", " + num_records + " records loaded.", e);
+			num_records = Integer.MAX_VALUE;	// Force compaction to repair
+		}
+		Log.d(TAG, entries.size() + " labels loaded from " + num_records + " records");
+		if (num_records < 0 || num_records > entries.size() * 2 + COMPACTION_SLACK) {
+			final AtomicFile file = mFile;
+			final Map<String, Entry> snapshot = new HashMap<>(entries);
+			mWriter.execute(() -> compact(file, snapshot));
+		}
+	}
+
+	@WorkerThread private static void append(final File file, final String pkg, final int version, final String label) {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+		try (final DataOutputStream record = new DataOutputStream(buffer)) {
+			record.writeInt(version);
+			record.writeUTF(pkg);
+			record.writeUTF(label);
+		} catch (final IOException e) {		// UTFDataFormatException if too long, which should never happen as label is truncated in put().
+			Log.e(TAG, "Error encoding label of " + pkg, e);
+			return;
+		}
+		try (final FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(buffer.toByteArray());	// In one write() to keep the record intact, even if appended by multiple processes.
+		} catch (final IOException e) {
+			Log.w(TAG, "Error appending to " + file, e);
+		}
+	}
+
+	@WorkerThread private static void compact(final AtomicFile file, final Map<String, Entry> entries) {
+		FileOutputStream stream = null;
+		try {
+			stream = file.startWrite();
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			out.writeInt(MAGIC);
+			for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+				out.writeInt(entry.getValue().version);
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue().label);
+			}
+			out.flush();
+			file.finishWrite(stream);
+			Log.d(TAG, "Compacted " + file.getBaseFile() + " with " + entries.size() + " labels");
+			deleteFilesOfOtherLocales(file.getBaseFile());
+		} catch (final IOException e) {
+			Log.w(TAG, "Error compacting " + file.getBaseFile(), e);
+			if (stream != null) file.failWrite(stream);
+		}
+	}
+
+	@WorkerThread private static void deleteFilesOfOtherLocales(final File current) {
+		final File[] files = current.getParentFile().listFiles((dir, name) -> name.startsWith(FILE_PREFIX)
+				&& ! name.equals(current.getName()) && ! name.startsWith(current.getName() + "."));	// Excluding ".bak" and ".new" of AtomicFile
+		if (files != null) for (final File file : files)
+			if (file.delete()) Log.d(TAG, "Deleted " + file);
+	}
+
+	AppLabelStore(final Context context, final String language_tags) {
+		mDir = context.getCacheDir();
+		mFile = new AtomicFile(new File(mDir, FILE_PREFIX + Integer.toHexString(language_tags.hashCode())));
+		mWriter.allowCoreThreadTimeOut(true);
+	}
+
+	private final File mDir;
+	private AtomicFile mFile;
+	private Map<String, Entry> mEntries;	// Lazily loaded
+	private final ThreadPoolExecutor mWriter = new ThreadPoolExecutor(1, 1, 10, SECONDS,	// Dedicated, not shared with unrelated work
+			new LinkedBlockingQueue<>(), r -> new Thread(r, "AppLabelStore"));
+
+	private static final String FILE_PREFIX = "app_labels.";
+	private static final int MAGIC = 0x414C4231;	// "ALB1"
+	private static final int COMPACTION_SLACK = 64;
+	private static final int MAX_LABEL_LENGTH = 1024;
+	private static final String TAG = "AppLabelStore";
+}
@@ -13,25 +13,37 @@ import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
 import androidx.databinding.CallbackRegistry;
 
 import com.oasisfeng.android.util.Suppliers;
+import com.oasisfeng.perf.Performances;
+import com.oasisfeng.perf.Stopwatch;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.O;
+
 /**
  * Provider for installed apps
  *
@@ -89,28 +101,121 @@ public abstract class AppListProvider<T extends AppInfo> extends ContentProvider
 		pkgs_filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
 		context().registerReceiver(mPackagesEventsObserver, pkgs_filter);
 
+		final Stopwatch stopwatch = Performances.startUptimeStopwatch();
+		if (SDK_INT >= O && loadFromSnapshot(apps)) {
+			Log.d(TAG, apps.size() + " apps loaded from snapshot in " + stopwatch);
+			return;
+		}
+		final int sequence_number = SDK_INT >= O ? mSnapshot.get().prepare() : 0;
 		//noinspection WrongConstant
 		for (final ApplicationInfo app : context().getPackageManager().getInstalledApplications(PM_FLAGS_APP_INFO))
 			apps.put(app.packageName, createEntry(app, null));
+		Log.d(TAG, apps.size() + " apps loaded in " + stopwatch);
+		if (SDK_INT >= O) saveSnapshot(sequence_number, apps);
 	}
 
-	private void onPackageEvent(final String pkg) {
+	@RequiresApi(O) private boolean loadFromSnapshot(final Map<String, T> apps) {
+		final List<AppListSnapshot.Entry> entries = mSnapshot.get().load();
+		if (entries == null) return false;
+		final Map<String, String> labels = new HashMap<>(entries.size());
+		for (final AppListSnapshot.Entry entry : entries) if (entry.label != null) labels.put(entry.info.packageName, entry.label);
+		mSnapshotLabels = labels;
+		try {
+			for (final AppListSnapshot.Entry entry : entries)
+				apps.put(entry.info.packageName, createEntry(entry.info, null));
+		} finally {
+			mSnapshotLabels = null;
+		}
+		AsyncTask.execute(() -> reconcileWithSnapshot(apps));
+		return true;
+	}
+
+	/** Apply package changes since the snapshot was taken, in eventual consistency. */
+	@RequiresApi(O) @WorkerThread private void reconcileWithSnapshot(final Map<String, T> apps) {
+		final AppListSnapshot snapshot = mSnapshot.get();
+		final List<String> changed_pkgs = snapshot.getChangedPackagesSinceSnapshot();
+		if (changed_pkgs == null) {     // Changes unavailable (sequence number unknown, or query failed), reload all apps.
+			Log.w(TAG, "Package changes unavailable, reload all apps.");
+			final int sequence_number = snapshot.prepare();
+			//noinspection WrongConstant
+			final List<ApplicationInfo> infos = context().getPackageManager().getInstalledApplications(PM_FLAGS_APP_INFO);
+			mMainHandler.post(() -> {
+				final List<T> updated = new ArrayList<>(infos.size());
+				final Map<String, T> removed = new HashMap<>(apps);
+				for (final ApplicationInfo info : infos) {
+					final T app = createEntry(info, removed.remove(info.packageName));
+					apps.put(info.packageName, app);
+					updated.add(app);
+				}
+				apps.keySet().removeAll(removed.keySet());
+				notifyUpdate(updated);
+				if (! removed.isEmpty()) notifyRemoval(removed.values());
+				saveSnapshot(sequence_number, apps);
+			});
+			return;
+		}
+		if (changed_pkgs.isEmpty()) return;
+		Log.i(TAG, changed_pkgs.size() + " packages changed since snapshot");
+		final int sequence_number = snapshot.getSequenceNumber();	// Updated by getChangedPackagesSinceSnapshot()
+
+		final Map<String, ApplicationInfo> infos = new HashMap<>(changed_pkgs.size());
+		for (final String pkg : changed_pkgs) try { //noinspection WrongConstant
+			infos.put(pkg, context().getPackageManager().getApplicationInfo(pkg, PM_FLAGS_APP_INFO));
+		} catch (final PackageManager.NameNotFoundException e) {
+			infos.put(pkg, null);	// Removed
+		}
+		mMainHandler.post(() -> {
+			final List<T> updated = new ArrayList<>(), removed = new ArrayList<>();
+			for (final Map.Entry<String, ApplicationInfo> entry : infos.entrySet()) {
+				final String pkg = entry.getKey(); final ApplicationInfo info = entry.getValue();
+				if (info != null) {
+					final T app = createEntry(info, apps.get(pkg));
+					apps.put(pkg, app);
+					updated.add(app);
+				} else {
+					final T app = apps.remove(pkg);
+					if (app != null) removed.add(app);
+				}
+			}
+			if (! updated.isEmpty()) notifyUpdate(updated);
+			if (! removed.isEmpty()) notifyRemoval(removed);
+			saveSnapshot(sequence_number, apps);
+		});
+	}
+
+	@RequiresApi(O) private void saveSnapshot(final int sequence_number, final Map<String, T> apps) {
+		final List<T> copy = new ArrayList<>(apps.values());
+		AsyncTask.execute(() -> mSnapshot.get().save(sequence_number, copy));
+	}
+
+	private void onPackageEvents(final Set<String> pkgs) {
 		final Map<String, T> apps = mAppMap.get();
-		T entry = null;
-		try { //noinspection WrongConstant
-			final ApplicationInfo info = context().getPackageManager().getApplicationInfo(pkg, PM_FLAGS_APP_INFO);
-			final T last_entry = mAppMap.get().get(pkg);
-			entry = createEntry(info, last_entry);
+		final PackageManager pm = context().getPackageManager();
+		final Map<String, ApplicationInfo> infos = new HashMap<>(pkgs.size());
+		if (pkgs.size() > BULK_QUERY_THRESHOLD) {	// One bulk query is cheaper than lots of individual queries.
+			//noinspection WrongConstant
+			for (final ApplicationInfo info : pm.getInstalledApplications(PM_FLAGS_APP_INFO))
+				if (pkgs.contains(info.packageName)) infos.put(info.packageName, info);
+		} else for (final String pkg : pkgs) try { //noinspection WrongConstant
+			infos.put(pkg, pm.getApplicationInfo(pkg, PM_FLAGS_APP_INFO));
 		} catch (final PackageManager.NameNotFoundException ignored) {}
 
-		if (entry != null) {
-			if (apps.put(pkg, entry) != null) Log.i(TAG, "Updated: " + pkg);
-			else Log.i(TAG, "Added: " + pkg);
-			notifyUpdate(Collections.singleton(entry));
-		} else if ((entry = apps.remove(pkg)) != null) {
-			Log.i(TAG, "Removed: " + pkg);
-			notifyRemoval(Collections.singleton(entry));
-		} else Log.e(TAG, "Event of non-existent package: " + pkg);		// Already removed somewhere before?
+		final List<T> updated_apps = new ArrayList<>(), removed_apps = new ArrayList<>();
+		for (final String pkg : pkgs) {
+			final ApplicationInfo info = infos.get(pkg);
+			T entry;
+			if (info != null) {
+				entry = createEntry(info, apps.get(pkg));
+				if (apps.put(pkg, entry) != null) Log.i(TAG, "Updated: " + pkg);
+				else Log.i(TAG, "Added: " + pkg);
+				updated_apps.add(entry);
+			} else if ((entry = apps.remove(pkg)) != null) {
+				Log.i(TAG, "Removed: " + pkg);
+				removed_apps.add(entry);
+			} else Log.e(TAG, "Event of non-existent package: " + pkg);		// Already removed somewhere before?
+		}
+		if (! updated_apps.isEmpty()) notifyUpdate(updated_apps);
+		if (! removed_apps.isEmpty()) notifyRemoval(removed_apps);
 	}
 
 	// Eventual consistency strategy to improve performance
@@ -167,6 +272,9 @@ public abstract class AppListProvider<T extends AppInfo> extends ContentProvider
 	String getCachedOrTempLabel(final ApplicationInfo info) {
 		final String cached = mAppLabelCache.get().get(info);
 		if (cached != null) return cached;
+		final Map<String, String> snapshot_labels = mSnapshotLabels;
+		final String snapshot_label = snapshot_labels != null ? snapshot_labels.get(info.packageName) : null;
+		if (snapshot_label != null) return snapshot_label;
 		return info.nonLocalizedLabel != null ? info.nonLocalizedLabel.toString() : info.packageName;	// As temporary label
 	}
 
@@ -184,7 +292,7 @@ public abstract class AppListProvider<T extends AppInfo> extends ContentProvider
 				return;		// Skip component-level changes, we only care about package-level changes.
 		} else if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction()) && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false))
 			return;			// Skip the package removal broadcast if package is being replaced. ACTION_PACKAGE_ADDED will arrive soon.
-		onPackageEvent(pkg);
+		mPackageEvents.post(pkg, 0);
 	}};
 
 	private final BroadcastReceiver mPackagesEventsObserver = new BroadcastReceiver() { @Override public void onReceive(final Context context, final Intent intent) {
@@ -196,6 +304,7 @@ public abstract class AppListProvider<T extends AppInfo> extends ContentProvider
 	@Override public void onTrimMemory(final int level) {
 		if (! mStarted) return;
 		final ConcurrentHashMap<String, T> apps = mAppMap.get();
+		AppIconCache.get(context()).trimMemory(level);
 		switch (level) {
 		case TRIM_MEMORY_RUNNING_MODERATE:
 		case TRIM_MEMORY_RUNNING_LOW:
@@ -240,8 +349,17 @@ public abstract class AppListProvider<T extends AppInfo> extends ContentProvider
 			else if (callback_index == CALLBACK_REMOVE) callback.onPackageRemoved(apps);
 		}
 	});
+	/** Coalesced package events in owner user, with counters of events received and coalesced */
+	protected final PackageEventCoalescer<String> mPackageEvents = new PackageEventCoalescer<>(TAG, PACKAGE_EVENTS_WINDOW,
+			events -> onPackageEvents(events.keySet()));
 	private final Supplier<AppLabelCache> mAppLabelCache = Suppliers.memoize(() -> new AppLabelCache(context(), this::onAppLabelUpdate));
+	private final Supplier<AppListSnapshot> mSnapshot = Suppliers.memoize(() -> new AppListSnapshot(context()));
+	/** Only available during the loading of snapshot */
+	private volatile Map<String, String> mSnapshotLabels;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
+	protected static final long PACKAGE_EVENTS_WINDOW = 200;	// The window to coalesce package events in
+	private static final int BULK_QUERY_THRESHOLD = 16;
 	private static final int CALLBACK_UPDATE = 0;
 	private static final int CALLBACK_REMOVE = -1;
 	@SuppressLint("InlinedApi") protected static final int PM_FLAGS_APP_INFO
@@ -0,0 +1,229 @@
+package com.oasisfeng.common.app;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageManager;
+import android.provider.Settings;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+
+import com.oasisfeng.island.util.Hacks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static android.os.Build.VERSION_CODES.O;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compact on-disk snapshot of installed apps, to serve the app list instantly upon cold start.
+ *
+ * The snapshot is bound to the current boot (package sequence numbers are reset across reboot) and the current locale (for labels).
+ * Changes since the snapshot was taken are retrieved by {@link PackageManager#getChangedPackages(int)}.
+ */
+@RequiresApi(O) public class AppListSnapshot {
+
+	public static class Entry {
+
+		public final ApplicationInfo info;
+		public final @Nullable String label;
+
+		Entry(final ApplicationInfo info, final @Nullable String label) { this.info = info; this.label = label; }
+	}
+
+	/** @return the entries in snapshot, or null if snapshot is absent or stale (not taken in current boot or locale). */
+	public @Nullable List<Entry> load() {
+		final File file = mFile.getBaseFile();
+		if (! file.exists()) return null;
+		try (final FileInputStream input = new FileInputStream(file); final FileChannel channel = input.getChannel()) {
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) return null;
+			if (buffer.getInt() != getBootCount() || ! mLocales.equals(readString(buffer))) return null;
+			mSequenceNumber = buffer.getInt();
+			final int count = buffer.getInt();
+			final List<Entry> entries = new ArrayList<>(count);
+			for (int i = 0; i < count; i ++) entries.add(readEntry(buffer));
+			return entries;
+		} catch (final IOException | BufferUnderflowException | IllegalArgumentException e) {
+			Log.w(TAG, "Discard corrupted snapshot", e);
+			mFile.delete();
+			return null;
+		}
+	}
+
+	/** Source of package changes, which is {@link PackageManager#getChangedPackages(int)} in the user of snapshot. */
+	public interface ChangesSource { @Nullable ChangedPackages getChangedPackages(int sequence_number); }
+
+	/** @return the sequence number before the snapshot (which should be taken right after this call), or -1 if unavailable. */
+	public int prepare() {
+		final int since = Math.max(mSequenceNumber, 0);		// Query from the last known sequence number, to get as few changes as possible.
+		final ChangedPackages changes;
+		try { changes = mChangesSource.getChangedPackages(since); }
+		catch (final RuntimeException e) { Log.w(TAG, "Error querying package changes", e); return -1; }
+		return changes != null ? changes.getSequenceNumber() : since;
+	}
+
+	/** @return the packages changed since the snapshot was taken, or null if unavailable. */
+	public @Nullable List<String> getChangedPackagesSinceSnapshot() {
+		if (mSequenceNumber < 0) return null;
+		final ChangedPackages changes;
+		try { changes = mChangesSource.getChangedPackages(mSequenceNumber); }
+		catch (final RuntimeException e) { Log.w(TAG, "Error querying package changes", e); return null; }
+		return consumeChanges(changes);
+	}
+
+	/**
+	 * Consume the changes since {@link #getSequenceNumber()} queried by caller (e.g. along with other queries in one transaction).
+	 *
+	 * @return the packages changed
+	 */
+	public List<String> consumeChanges(final @Nullable ChangedPackages changes) {
+		if (changes == null) return Collections.emptyList();	// No change since then
+		mSequenceNumber = changes.getSequenceNumber();
+		return changes.getPackageNames();
+	}
+
+	/** @return the sequence number of snapshot, or that of the last query in {@link #getChangedPackagesSinceSnapshot()}. */
+	public int getSequenceNumber() { return mSequenceNumber; }
+
+	@WorkerThread public void save(final int sequence_number, final Collection<? extends ApplicationInfo> apps) {
+		FileOutputStream stream = null;
+		try {
+			stream = mFile.startWrite();
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(getBootCount());
+			writeString(out, mLocales);
+			out.writeInt(sequence_number);
+			out.writeInt(apps.size());
+			for (final ApplicationInfo app : apps) writeEntry(out, app);
+			out.flush();
+			mFile.finishWrite(stream);
+			mSequenceNumber = sequence_number;
+			Log.d(TAG, "Saved " + apps.size() + " apps (sequence " + sequence_number + ")");
+		} catch (final IOException e) {
+			Log.w(TAG, "Error saving snapshot", e);
+			if (stream != null) mFile.failWrite(stream);
+		}
+	}
+
+	private static void writeEntry(final DataOutputStream out, final ApplicationInfo app) throws IOException {
+		writeString(out, app.packageName);
+		out.writeInt(app.uid);
+		out.writeInt(app.flags);
+		final Integer private_flags = Hacks.ApplicationInfo_privateFlags.get(app);
+		out.writeInt(private_flags != null ? private_flags : 0);
+		out.writeBoolean(app.enabled);
+		out.writeInt(app.icon);
+		out.writeInt(app.labelRes);		// Fields below are also read by label and icon loading.
+		writeString(out, app.nonLocalizedLabel != null ? app.nonLocalizedLabel.toString() : null);
+		out.writeInt(app.logo);
+		out.writeInt(app.theme);
+		writeStrings(out, app.sharedLibraryFiles);
+		out.writeInt(app.targetSdkVersion);
+		out.writeInt(Hacks.ApplicationInfo_versionCode.get(app));
+		writeString(out, app.sourceDir);
+		writeStrings(out, app.splitSourceDirs);
+		writeString(out, app instanceof AppInfo ? ((AppInfo) app).getLabel() : null);
+	}
+
+	private static Entry readEntry(final ByteBuffer buffer) {
+		final ApplicationInfo info = new ApplicationInfo();
+		info.packageName = readString(buffer);
+		info.uid = buffer.getInt();
+		info.flags = buffer.getInt();
+		final int private_flags = buffer.getInt();
+		if (private_flags != 0) Hacks.ApplicationInfo_privateFlags.set(info, private_flags);
+		info.enabled = buffer.get() != 0;
+		info.icon = buffer.getInt();
+		info.labelRes = buffer.getInt();
+		info.nonLocalizedLabel = readString(buffer);
+		info.logo = buffer.getInt();
+		info.theme = buffer.getInt();
+		info.sharedLibraryFiles = readStrings(buffer);
+		info.targetSdkVersion = buffer.getInt();
+		final int version = buffer.getInt();
+		if (version != 0) Hacks.ApplicationInfo_versionCode.set(info, version);
+		info.sourceDir = info.publicSourceDir = readString(buffer);
+		info.splitSourceDirs = info.splitPublicSourceDirs = readStrings(buffer);
+		final String label = readString(buffer);
+		return new Entry(info, label);
+	}
+
+	private static void writeString(final DataOutputStream out, final @Nullable String value) throws IOException {
+		if (value == null) { out.writeInt(-1); return; }
+		final byte[] bytes = value.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeStrings(final DataOutputStream out, final @Nullable String[] values) throws IOException {
+		out.writeInt(values != null ? values.length : -1);
+		if (values != null) for (final String value : values) writeString(out, value);
+	}
+
+	private static @Nullable String[] readStrings(final ByteBuffer buffer) {
+		final int count = buffer.getInt();
+		if (count < 0) return null;
+		if (count > buffer.remaining() / 4) throw new IllegalArgumentException("Invalid array length: " + count);
+		final String[] values = new String[count];
+		for (int i = 0; i < count; i ++) values[i] = readString(buffer);
+		return values;
+	}
+
+	private static @Nullable String readString(final ByteBuffer buffer) {
+		final int length = buffer.getInt();
+		if (length < 0) return null;
+		if (length > buffer.remaining()) throw new IllegalArgumentException("Invalid string length: " + length);
+		final ByteBuffer slice = buffer.slice();	// Decode in place, without copying out of the mapped buffer
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return UTF_8.decode(slice).toString();
+	}
+
+	private int getBootCount() {
+		return Settings.Global.getInt(mContext.getContentResolver(), Settings.Global.BOOT_COUNT, 0);
+	}
+
+	AppListSnapshot(final Context context) {
+		this(context, FILE_NAME, context.getPackageManager()::getChangedPackages);
+	}
+
+	/** @param name the file name of snapshot, unique for each user */
+	public AppListSnapshot(final Context context, final String name, final ChangesSource source) {
+		mContext = context;
+		mChangesSource = source;
+		mFile = new AtomicFile(new File(context.getCacheDir(), name));
+		mLocales = context.getResources().getConfiguration().getLocales().toLanguageTags();
+	}
+
+	private final Context mContext;
+	private final ChangesSource mChangesSource;
+	private final AtomicFile mFile;
+	private final @NonNull String mLocales;
+	private volatile int mSequenceNumber = -1;
+
+	private static final String FILE_NAME = "app_list.snapshot";
+	private static final int MAGIC = 0x414C5331;	// "ALS1"
+	private static final int FORMAT_VERSION = 2;
+	private static final String TAG = "AppListSnapshot";
+}
@@ -3,15 +3,20 @@ package com.oasisfeng.common.app;
 import android.app.Application;
 import android.util.Log;
 
+import androidx.annotation.MainThread;
+import androidx.annotation.WorkerThread;
 import androidx.databinding.ObservableList;
 import androidx.lifecycle.MutableLiveData;
 
 import com.oasisfeng.android.databinding.ObservableSortedList;
 import com.oasisfeng.island.model.AppViewModel;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * View-model of basic entry-selectable (single-choice) app-list.
@@ -27,6 +32,50 @@ public abstract class BaseAppListViewModel<T extends AppViewModel> extends BaseA
 		for (final T app : apps)
 			mAppsByPackage.put(app.info.packageName, app);
 		mApps.addAll(apps);
+		for (int i = 0, size = Math.min(mApps.size(), NUM_ICONS_TO_PREFETCH); i < size; i ++)
+			mApps.get(i).prefetchIcon();	// Rows at the top are most likely to be shown first.
+	}
+
+	/** The difference between the list shown and a new list, computed off the main thread by {@link #diff(Map, List)}. */
+	protected static class AppListDiff<T> {
+
+		final Map<String, T> base;
+		final List<T> upserted = new ArrayList<>();
+		final List<String> removed = new ArrayList<>();
+
+		AppListDiff(final Map<String, T> base) { this.base = base; }
+		public boolean isEmpty() { return upserted.isEmpty() && removed.isEmpty(); }
+		@Override public String toString() { return "AppListDiff{upserted=" + upserted.size() + ", removed=" + removed.size() + "}"; }
+	}
+
+	/** @return the snapshot of current apps as the base to compute the difference with. */
+	@MainThread protected Map<String, T> snapshotApps() { return new HashMap<>(mAppsByPackage); }
+
+	@WorkerThread protected AppListDiff<T> diff(final Map<String, T> base, final List<T> apps) {
+		final AppListDiff<T> diff = new AppListDiff<>(base);
+		final Set<String> remaining = new HashSet<>(base.keySet());
+		for (final T app : apps) {
+			final String pkg = app.info.packageName;
+			final T current = base.get(pkg);
+			if (current == null || ! current.isContentSameAs(app)) diff.upserted.add(app);
+			remaining.remove(pkg);
+		}
+		diff.removed.addAll(remaining);
+		return diff;
+	}
+
+	/** Apply only the inserted, removed and changed entries, keeping unchanged entries (with icons loaded) in place. */
+	@MainThread protected void applyDiff(final AppListDiff<T> diff) {
+		if (diff.base.isEmpty() && mAppsByPackage.isEmpty()) {	// Initial population in batch
+			replaceApps(diff.upserted);
+			return;
+		}
+		for (final String pkg : diff.removed)
+			if (mAppsByPackage.get(pkg) == diff.base.get(pkg)) removeApp(pkg);	// Skip if updated since the base snapshot
+		for (final T app : diff.upserted) {
+			final String pkg = app.info.packageName;
+			if (mAppsByPackage.get(pkg) == diff.base.get(pkg)) putApp(pkg, app);
+		}
 	}
 
 	protected T putApp(final String pkg, final T app) {
@@ -90,6 +139,7 @@ public abstract class BaseAppListViewModel<T extends AppViewModel> extends BaseA
 		mApps = new ObservableSortedList<>(clazz);
 	}
 
+	private static final int NUM_ICONS_TO_PREFETCH = 24;
 	private static final String TAG = "Island.Apps.Base";
 
 	private final ObservableSortedList<T> mApps;
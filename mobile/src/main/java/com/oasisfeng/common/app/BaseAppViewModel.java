@@ -4,6 +4,7 @@ import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.view.View;
 
+import androidx.annotation.MainThread;
 import androidx.databinding.ObservableField;
 import androidx.lifecycle.ViewModel;
 
@@ -24,15 +25,37 @@ public class BaseAppViewModel extends ViewModel {
 	public final AppInfo info;
 	public final ObservableField<Drawable> icon = new ObservableField<>();		// Issue in data-binding - MutableLiveData causes initially empty icons.
 	public transient final NonNullMutableLiveData<Boolean> selected = new NonNullMutableLiveData<>(false);
-	private volatile boolean mIconLoadingStarted;
+	private LoaderScheduler.Token mIconLoading;		// Non-null if loading or loaded
+	private int mIconLoadingPriority;
 
 	public boolean isSystem() { return (info.flags & FLAG_SYSTEM) != 0; }
 
 	@SuppressWarnings("unused")		// Used by data binding
 	public void onViewAttached(final View v) {
-		if (mIconLoadingStarted) return;
-		mIconLoadingStarted = true;
-		info.loadUnbadgedIcon(sIconResizer::createIconThumbnail, icon::set);
+		loadIcon(LoaderScheduler.PRIORITY_VISIBLE);
+	}
+
+	/** Cancel the pending icon loading if the row is scrolled away before the icon is loaded. */
+	@SuppressWarnings("unused")		// Used by data binding
+	public void onViewDetached(final View v) {
+		if (mIconLoading == null || icon.get() != null) return;
+		mIconLoading.cancel();
+		mIconLoading = null;	// Restart loading upon next attachment
+	}
+
+	/** Load the icon in advance with lower priority than visible rows, for rows likely to be shown soon. */
+	@MainThread void prefetchIcon() {
+		loadIcon(LoaderScheduler.PRIORITY_PREFETCH);
+	}
+
+	@MainThread private void loadIcon(final int priority) {
+		if (mIconLoading != null && ! mIconLoading.isCancelled()) {		// Cancelled if dropped by scheduler
+			if (icon.get() != null || priority >= mIconLoadingPriority) return;
+			mIconLoading.cancel();		// Still pending with lower priority (e.g. prefetching row now shown), resubmit with higher priority.
+		}
+		final LoaderScheduler.Token token = mIconLoading = new LoaderScheduler.Token();
+		mIconLoadingPriority = priority;
+		info.loadUnbadgedIcon(sIconResizer::createIconThumbnail, icon::set, priority, token);
 	}
 
 	public BaseAppViewModel(final AppInfo info) { this.info = info; }
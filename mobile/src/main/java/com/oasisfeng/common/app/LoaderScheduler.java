@@ -0,0 +1,151 @@
+package com.oasisfeng.common.app;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.UiThread;
+import androidx.annotation.WorkerThread;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Prioritized scheduler for loading tasks of app label and icon, with cancellation.
+ *
+ * Tasks are ordered by priority then by submission, and never run on the caller thread even if the queue is full.
+ * Instead, tasks other than {@link #PRIORITY_VISIBLE} are dropped when the queue is full, while a visible task evicts the queued task
+ * of the lowest priority (the oldest one among the same priority) to make room. Tokens of dropped or evicted tasks are cancelled.
+ * Tasks cancelled before started are skipped, and results of tasks cancelled before delivered are discarded.
+ */
+public class LoaderScheduler {
+
+	public static final int PRIORITY_VISIBLE = 0;		// Icons of rows currently shown
+	public static final int PRIORITY_PREFETCH = 1;		// Icons of rows likely to be shown soon
+	public static final int PRIORITY_LABEL = 2;			// Labels to refresh in cache
+	public static final int PRIORITY_BACKGROUND = 3;	// Housekeeping, e.g. writing cache to disk
+
+	/** Cancellation token, typically bound to the view (row) requesting the loading. */
+	public static class Token {
+
+		@AnyThread public void cancel() { mCancelled = true; }
+		@AnyThread public boolean isCancelled() { return mCancelled; }
+
+		private volatile boolean mCancelled;
+	}
+
+	public interface WorkerTask<R> extends Callable<R> { @WorkerThread @Override R call(); }
+
+	/**
+	 * @param on_result called on main thread with the result of task (null if the task failed), unless cancelled.
+	 * @return false if dropped due to full queue, in which case the token (if any) is also cancelled.
+	 */
+	@AnyThread public <R> boolean submit(final int priority, final @Nullable Token token, final WorkerTask<R> task, final @Nullable Consumer<R> on_result) {
+		if (getQueueDepth() >= mCapacity) {
+			if (priority != PRIORITY_VISIBLE) {
+				drop(token);
+				return false;
+			}
+			evictLowestPriorityTask();
+		}
+		mExecutor.execute(new Task<>(priority, token, task, on_result));
+		return true;
+	}
+
+	private void evictLowestPriorityTask() {
+		Task<?> victim = null;
+		for (final Runnable queued : mExecutor.getQueue()) {
+			final Task<?> task = (Task<?>) queued;
+			if (victim == null || task.mPriority > victim.mPriority || (task.mPriority == victim.mPriority && task.mSequence < victim.mSequence))
+				victim = task;	// Among the same priority, the oldest one is most likely stale (e.g. row already scrolled away)
+		}
+		if (victim != null && mExecutor.remove(victim)) drop(victim.mToken);
+	}
+
+	private void drop(final @Nullable Token token) {
+		mNumDropped.incrementAndGet();
+		if (token != null) token.cancel();
+	}
+
+	@AnyThread public void execute(final int priority, final Runnable runnable) {
+		submit(priority, null, () -> { runnable.run(); return null; }, null);
+	}
+
+	/** @return number of tasks waiting in queue */
+	public int getQueueDepth() { return mExecutor.getQueue().size(); }
+	/** @return average time (in milliseconds) tasks waited in queue before started */
+	public long getAverageWaitMillis() { final long count = mNumStarted.get(); return count == 0 ? 0 : mTotalWaitMillis.get() / count; }
+	/** @return number of tasks skipped or dropped due to cancellation */
+	public long getNumCancelled() { return mNumCancelled.get(); }
+	/** @return number of tasks dropped or evicted due to full queue */
+	public long getNumDropped() { return mNumDropped.get(); }
+
+	private class Task<R> implements Runnable, Comparable<Task<?>> {
+
+		@Override public void run() {
+			if (mToken != null && mToken.isCancelled()) { mNumCancelled.incrementAndGet(); return; }
+			final long waited = SystemClock.uptimeMillis() - mSubmitTime;
+			mTotalWaitMillis.addAndGet(waited);
+			final long started = mNumStarted.incrementAndGet();
+			if (started % METRICS_LOG_INTERVAL == 0)
+				Log.d(TAG, mName + ": queue depth " + getQueueDepth() + ", avg wait " + getAverageWaitMillis() + "ms, cancelled " + getNumCancelled() + ", dropped " + getNumDropped());
+
+			R result;
+			try { result = mTask.call(); }
+			catch (final RuntimeException e) { Log.w(TAG, "Error running task in " + mName, e); result = null; }	// Still delivered, not to leave it pending
+			final R delivery = result;
+			if (mOnResult != null) mMainHandler.post(() -> deliver(delivery));
+		}
+
+		@UiThread private void deliver(final R result) {
+			if (mToken != null && mToken.isCancelled()) mNumCancelled.incrementAndGet();
+			else mOnResult.accept(result);
+		}
+
+		@Override public int compareTo(final Task<?> another) {
+			if (mPriority != another.mPriority) return Integer.compare(mPriority, another.mPriority);
+			return Long.compare(mSequence, another.mSequence);	// FIFO for the same priority
+		}
+
+		Task(final int priority, final @Nullable Token token, final WorkerTask<R> task, final @Nullable Consumer<R> on_result) {
+			mPriority = priority; mToken = token; mTask = task; mOnResult = on_result;
+			mSequence = mSequencer.incrementAndGet();
+			mSubmitTime = SystemClock.uptimeMillis();
+		}
+
+		private final int mPriority;
+		private final long mSequence;
+		private final long mSubmitTime;
+		private final @Nullable Token mToken;
+		private final WorkerTask<R> mTask;
+		private final @Nullable Consumer<R> mOnResult;
+	}
+
+	LoaderScheduler(final String name, final int num_threads, final int capacity) {
+		mName = name;
+		mCapacity = capacity;
+		mExecutor = new ThreadPoolExecutor(num_threads, num_threads, 1, SECONDS, new PriorityBlockingQueue<>(), r -> new Thread(r, name));
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	private final String mName;
+	private final int mCapacity;
+	private final ThreadPoolExecutor mExecutor;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final AtomicLong mSequencer = new AtomicLong();
+	private final AtomicLong mNumStarted = new AtomicLong();
+	private final AtomicLong mNumCancelled = new AtomicLong();
+	private final AtomicLong mNumDropped = new AtomicLong();
+	private final AtomicLong mTotalWaitMillis = new AtomicLong();
+
+	private static final int METRICS_LOG_INTERVAL = 100;
+	private static final String TAG = "LoaderScheduler";
+}
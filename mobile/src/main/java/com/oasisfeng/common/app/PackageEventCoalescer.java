@@ -0,0 +1,65 @@
+package com.oasisfeng.common.app;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+
+import java.util.Map;
+
+/**
+ * Debounce package events within a short window and merge duplicate events of the same key (e.g. package and user),
+ * so that event storms (bulk freezing, OTA and etc) are processed in batch.
+ *
+ * For duplicate events of the same key, only the last event type is kept, since the package state is looked up when processed.
+ */
+public class PackageEventCoalescer<K> {
+
+	public interface BatchProcessor<K> {
+		/** @param events key to the last event type */
+		@MainThread void process(Map<K, Integer> events);
+	}
+
+	@MainThread public void post(final K key, final int type) {
+		mNumReceived ++;
+		if (mPendingEvents.put(key, type) != null) mNumCoalesced ++;
+		if (mPendingEvents.size() == 1) mHandler.postDelayed(mFlush, mWindowMillis);
+	}
+
+	/** Process pending events immediately */
+	@MainThread public void flush() {
+		mHandler.removeCallbacks(mFlush);
+		mFlush.run();
+	}
+
+	/** @return number of events received in total */
+	public long getNumEventsReceived() { return mNumReceived; }
+	/** @return number of events merged into other events of the same key */
+	public long getNumEventsCoalesced() { return mNumCoalesced; }
+
+	public PackageEventCoalescer(final String name, final long window_millis, final BatchProcessor<K> processor) {
+		mName = name;
+		mWindowMillis = window_millis;
+		mProcessor = processor;
+	}
+
+	private final Runnable mFlush = () -> {
+		if (mPendingEvents.isEmpty()) return;
+		final Map<K, Integer> events = new ArrayMap<>(mPendingEvents);
+		mPendingEvents.clear();
+		Log.d(TAG, mName + ": " + events.size() + " events in batch (received: " + mNumReceived + ", coalesced: " + mNumCoalesced + ")");
+		mProcessor.process(events);
+	};
+
+	private final String mName;
+	private final long mWindowMillis;
+	private final BatchProcessor<K> mProcessor;
+	private final Map<K, Integer> mPendingEvents = new ArrayMap<>();
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private long mNumReceived;
+	private long mNumCoalesced;
+
+	private static final String TAG = "PkgEventCoalescer";
+}
@@ -57,6 +57,7 @@ object IslandAppClones {
 	private const val CLONE_RESULT_OK_GOOGLE_PLAY = 10
 	private const val CLONE_RESULT_UNKNOWN_SYS_MARKET = 11
 	private const val CLONE_RESULT_NO_SYS_MARKET = -1
+	private const val SHUTTLE_TIMEOUT = 30_000L     // Profile may need to be started
 
 	@JvmStatic fun cloneApp(vm: BaseAndroidViewModel, source: IslandAppInfo, target: UserHandle) {
 		vm.interactive(source.context()) { cloneApp(source, target) }
@@ -67,7 +68,7 @@ object IslandAppClones {
 		if (source.isSystem) {
 			analytics().event("clone_sys").with(Analytics.Param.ITEM_ID, pkg).send()
 
-			val enabled = Shuttle(context, to = target).invoke { DevicePolicies(this).enableSystemApp(pkg) }
+			val enabled = Shuttle(context, to = target).invokeSuspending(SHUTTLE_TIMEOUT) { DevicePolicies(this).enableSystemApp(pkg) }
 
 			if (enabled) Toast.makeText(context, context.getString(R.string.toast_successfully_cloned, source.label), Toast.LENGTH_SHORT).show()
 			else Toast.makeText(context, context.getString(R.string.toast_cannot_clone, source.label), Toast.LENGTH_LONG).show()
@@ -76,7 +77,7 @@ object IslandAppClones {
 
 		if (SDK_INT >= O && cloneAppViaRoot(context, source, target)) return    // Prefer root routine to avoid overhead (it's instant)
 
- 		val result = Shuttle(context, to = target).invoke(with = source as ApplicationInfo) {
+ 		val result = Shuttle(context, to = target).invokeSuspending(with = source as ApplicationInfo, timeout = SHUTTLE_TIMEOUT) {
 			performAppCloningInProfile(this, it) }     // Cast to reduce the overhead
 		Log.i(TAG, "Result of cloning $pkg to $target: $result")
 
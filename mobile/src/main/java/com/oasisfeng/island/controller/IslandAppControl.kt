@@ -7,7 +7,10 @@ import android.content.Context
 import android.content.Intent
 import android.content.pm.LauncherApps
 import android.net.Uri
+import android.os.Handler
+import android.os.Looper
 import android.os.UserHandle
+import android.util.Log
 import android.widget.Toast
 import com.oasisfeng.android.app.Activities
 import com.oasisfeng.android.content.IntentCompat
@@ -19,6 +22,7 @@ import com.oasisfeng.island.analytics.Analytics.Param.ITEM_CATEGORY
 import com.oasisfeng.island.analytics.Analytics.Param.ITEM_ID
 import com.oasisfeng.island.analytics.analytics
 import com.oasisfeng.island.data.IslandAppInfo
+import com.oasisfeng.island.data.IslandAppListProvider
 import com.oasisfeng.island.data.helper.AppStateTrackingHelper
 import com.oasisfeng.island.engine.ClonedHiddenSystemApps.Companion.setCloned
 import com.oasisfeng.island.engine.IslandManager
@@ -29,16 +33,19 @@ import com.oasisfeng.island.util.DevicePolicies
 import com.oasisfeng.island.util.OwnerUser
 import com.oasisfeng.island.util.ProfileUser
 import com.oasisfeng.island.util.Users
+import com.oasisfeng.island.util.toId
+import kotlinx.coroutines.future.await
 import org.jetbrains.annotations.NotNull
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.function.BiFunction
 
 object IslandAppControl {
 
 	@JvmStatic fun requestRemoval(activity: Activity, app: IslandAppInfo) {
 		analytics().event("action_uninstall").with(ITEM_ID, app.packageName).with(ITEM_CATEGORY, "system").send()
 
-		if (! unfreezeIfNeeded(app)) return
-
-		if (app.isSystem) {
+		whenUnfrozen(app) { if (app.isSystem) {
 			analytics().event("action_disable_sys_app").with(ITEM_ID, app.packageName).send()
 			if (app.isCritical) Dialogs.buildAlert(activity, R.string.dialog_title_warning, R.string.dialog_critical_app_warning)
 					.withCancelButton().setPositiveButton(R.string.action_continue) { _,_ -> launchSystemAppSettings(app) }.show()
@@ -48,7 +55,7 @@ object IslandAppControl {
 			Activities.startActivity(activity, Intent(Intent.ACTION_UNINSTALL_PACKAGE)
 					.setData(Uri.fromParts("package", app.packageName, null)).putExtra(Intent.EXTRA_USER, app.user))
 			if (! Users.isProfileRunning(activity, app.user))   // App clone can actually be removed in quiet mode, without callback triggered.
-				if (! activity.isDestroyed) AppStateTrackingHelper.requestSyncWhenResumed(activity, app.packageName, app.user) }
+				if (! activity.isDestroyed) AppStateTrackingHelper.requestSyncWhenResumed(activity, app.packageName, app.user) }}
 	}
 
 	@JvmStatic fun launch(context: Context, app: IslandAppInfo) {
@@ -61,20 +68,19 @@ object IslandAppControl {
 
 	private fun unfreezeAndLaunch(context: Context, app: IslandAppInfo) {
 		val pkg = app.packageName
-		val failure = Shuttle(context, to = app.user).invoke { IslandManager.ensureAppFreeToLaunch(this, pkg) }
-
-		if (failure.isNotEmpty()) {
-			Toast.makeText(context, R.string.toast_app_launch_error, Toast.LENGTH_LONG).show()
-			return analytics().event("app_launch_error").with(ITEM_ID, pkg).with(ITEM_CATEGORY, failure).send() }
-
-		if (! IslandManager.launchApp(context, pkg, app.user)) {
-			Toast.makeText(context, context.getString(R.string.toast_app_launch_failure, Apps.of(context).getAppName(pkg)), Toast.LENGTH_LONG).show()
-			analytics().event("app_launch_error").with(ITEM_ID, pkg).with(ITEM_CATEGORY, "launcher_activity_not_found").send() }
+		shuttleAsync(context, app.user) { IslandManager.ensureAppFreeToLaunch(this, pkg) }.thenAccept { failure ->
+			if (failure == null || failure.isNotEmpty()) {
+				Toast.makeText(context, R.string.toast_app_launch_error, Toast.LENGTH_LONG).show()
+				return@thenAccept analytics().event("app_launch_error").with(ITEM_ID, pkg).with(ITEM_CATEGORY, failure ?: "shuttle_failure").send() }
+
+			if (! IslandManager.launchApp(context, pkg, app.user)) {
+				Toast.makeText(context, context.getString(R.string.toast_app_launch_failure, Apps.of(context).getAppName(pkg)), Toast.LENGTH_LONG).show()
+				analytics().event("app_launch_error").with(ITEM_ID, pkg).with(ITEM_CATEGORY, "launcher_activity_not_found").send() }}
 	}
 
 	@JvmStatic fun launchSystemAppSettings(app: IslandAppInfo) {    // Stock app info activity requires the target app not hidden.
-		if (unfreezeIfNeeded(app))
-			app.context().getSystemService(LauncherApps::class.java)!!.startAppDetailsActivity(ComponentName(app.packageName, ""), app.user, null, null)
+		whenUnfrozen(app) {
+			app.context().getSystemService(LauncherApps::class.java)!!.startAppDetailsActivity(ComponentName(app.packageName, ""), app.user, null, null) }
 	}
 
 	@JvmStatic fun launchExternalAppSettings(vm: BaseAndroidViewModel, app: @NotNull IslandAppInfo) {
@@ -84,35 +90,63 @@ object IslandAppControl {
 		val resolve = context.packageManager.resolveActivity(intent, 0) ?: return
 		// Should never happen as module "installer" is always bundled with "mobile".
 		intent.component = ComponentName(resolve.activityInfo.packageName, resolve.activityInfo.name)
-		vm.interactive(context) { if (unfreezeIfNeeded(app)) Activities.startActivity(context, intent) }
+		vm.interactive(context) { if (unfreezeIfNeeded(app).await()) Activities.startActivity(context, intent) }
 	}
 
-	private fun unfreezeIfNeeded(app: IslandAppInfo): Boolean {
-		return if (! app.isHidden) true else unfreeze(app)
+	private fun unfreezeIfNeeded(app: IslandAppInfo): CompletableFuture<Boolean>
+			= if (! app.isHidden) CompletableFuture.completedFuture(true) else unfreeze(app)
+
+	private fun whenUnfrozen(app: IslandAppInfo, block: () -> Unit) = unfreezeIfNeeded(app).thenAccept { if (it) block() }
+
+	/** @return future completed on main thread, with whether the app is frozen */
+	@JvmStatic fun freeze(app: IslandAppInfo) = setAppHidden(app, true)
+
+	/** @return future completed on main thread, with whether the app is unfrozen */
+	@JvmStatic fun unfreeze(app: IslandAppInfo) = setAppHidden(app, false)
+
+	private fun setAppHidden(app: IslandAppInfo, hidden: Boolean): CompletableFuture<Boolean> = Pair(app.packageName, app.user).let { key ->
+		setAppsHidden(app.context(), mapOf(key to hidden)).thenApply { it[key] == true }}
+
+	/** Shuttle asynchronously with deadline, the result (null if failed to shuttle) is delivered on main thread. */
+	private fun <R> shuttleAsync(context: Context, profile: UserHandle, function: Context.() -> R): CompletableFuture<R?>
+			= Shuttle(context, to = profile).invokeAsync(SHUTTLE_TIMEOUT, function).handleAsync(BiFunction { result, e ->
+				if (e == null) result else null.also { Log.w(TAG, "Error shuttling to profile ${profile.toId()}", e) }}, mMainThread)
+
+	/**
+	 * Freeze or unfreeze apps in batch, with one asynchronous cross-profile call for each profile involved, and one notification for all changes.
+	 *
+	 * @param requests (package, profile) to the target hidden state
+	 * @return future completed on main thread, with (package, profile) to whether it is in the target hidden state now
+	 */
+	@JvmStatic fun setAppsHidden(context: Context, requests: Map<Pair<String, UserHandle>, Boolean>): CompletableFuture<Map<Pair<String, UserHandle>, Boolean>> {
+		val provider = IslandAppListProvider.getInstance(context)
+		val futures = requests.entries.groupBy { it.key.second }.map { (profile, entries) ->
+			val pkgs = entries.map { it.key.first }.toTypedArray()
+			val states = entries.map { it.value }.toBooleanArray()
+			val systemApps = pkgs.map { provider[it, profile]?.isSystem == true }.toBooleanArray()
+			shuttleAsync(context, profile) { ensureAppsHiddenState(this, pkgs, states, systemApps) }.thenApply { done ->
+				if (done == null) Toasts.showLong(context, when {     // States may be mixed in one request
+					states.all { it } -> R.string.toast_error_freeze_failure
+					states.none { it } -> R.string.toast_error_unfreeze_failure
+					else -> R.string.toast_error_freeze_or_unfreeze_failure })
+				pkgs.mapIndexed { i, pkg -> Pair(pkg, profile) to (done?.get(i) == true) }}}     // Shuttle failure is failure of all
+
+		return CompletableFuture.allOf(*futures.toTypedArray()).thenApply {
+			val results = LinkedHashMap<Pair<String, UserHandle>, Boolean>(requests.size)
+			futures.forEach { results.putAll(it.join()) }
+			provider.refreshPackages(results.keys)
+			results }
 	}
 
-	@JvmStatic fun freeze(app: IslandAppInfo): Boolean {
-		val frozen = Shuttle(app.context(), to = app.user).invoke(with = app.packageName) {
-			ensureAppHiddenState(this, it, true) }
-		if (frozen && app.isSystem) stopTreatingHiddenSysAppAsDisabled(app)
-		return frozen
-	}
-
-	@JvmStatic fun unfreeze(app: IslandAppInfo) = unfreeze(app.context(), app.user, app.packageName)
-	private fun unfreeze(context: Context, profile: UserHandle, pkg: String)
-			= Shuttle(context, to = profile).invoke { ensureAppHiddenState(this, pkg, false) }
-
-	@OwnerUser @ProfileUser private fun ensureAppHiddenState(context: Context, pkg: String, hidden: Boolean): Boolean {
-		val policies = DevicePolicies(context)
-		if (policies.setApplicationHidden(pkg, hidden)) return true
-		// Since setApplicationHidden() return false if already in that state, also check the current state.
-		val state = policies.invoke(DevicePolicyManager::isApplicationHidden, pkg)
-		if (hidden == state) return true
-		val activeAdmins = policies.manager.activeAdmins
-		if (activeAdmins != null && activeAdmins.any { pkg == it.packageName })
+	@OwnerUser @ProfileUser private fun ensureAppsHiddenState(context: Context, pkgs: Array<String>, states: BooleanArray, systemApps: BooleanArray): BooleanArray {
+		val done = IslandManager.ensureAppsHiddenState(context, pkgs, states)
+		pkgs.forEachIndexed { i, pkg -> if (done[i] && states[i] && systemApps[i]) setCloned(context, pkg) }     // See stopTreatingHiddenSysAppAsDisabled()
+		val failed = pkgs.indices.firstOrNull { ! done[it] } ?: return done
+		val activeAdmins = DevicePolicies(context).manager.activeAdmins
+		if (activeAdmins != null && activeAdmins.any { pkgs[failed] == it.packageName })
 			Toasts.showLong(context, R.string.toast_error_freezing_active_admin) // TODO: Action to open device-admin settings.
-		else Toasts.showLong(context, if (hidden) R.string.toast_error_freeze_failure else R.string.toast_error_unfreeze_failure)
-		return false
+		else Toasts.showLong(context, if (states[failed]) R.string.toast_error_freeze_failure else R.string.toast_error_unfreeze_failure)
+		return done
 	}
 
 	@JvmStatic fun setSuspended(app: IslandAppInfo, suspended: Boolean) =
@@ -127,5 +161,11 @@ object IslandAppControl {
 			if (it) stopTreatingHiddenSysAppAsDisabled(app) }
 
 	private fun stopTreatingHiddenSysAppAsDisabled(app: IslandAppInfo)
-			= Shuttle(app.context(), to = app.user).invoke(with = app.packageName, function = ::setCloned)
+			= Shuttle(app.context(), to = app.user).invokeAsync(with = app.packageName, timeout = SHUTTLE_TIMEOUT, function = ::setCloned)
+					.whenComplete { _, e -> if (e != null) Log.e(TAG, "Error marking ${app.packageName} as cloned in profile ${app.user.toId()}", e) }
+
+	private val mMainThread = Executor { Handler(Looper.getMainLooper()).post(it) }
 }
+
+private const val SHUTTLE_TIMEOUT = 10_000L
+private const val TAG = "Island.AppControl"
@@ -0,0 +1,118 @@
+package com.oasisfeng.island.data
+
+import android.icu.text.Transliterator
+import android.os.Build.VERSION.SDK_INT
+import android.os.Build.VERSION_CODES.Q
+import android.util.Log
+import java.text.Normalizer
+import java.util.*
+
+/**
+ * Search index of app labels and package names, with pre-normalized (lower-cased and accent-folded) terms.
+ *
+ * Candidates are narrowed down by bigram posting sets, then verified by substring match on the pre-normalized terms,
+ * so that no string is allocated per app for each query. Labels in CJK are also indexed in pinyin and its initials (since Android Q).
+ */
+class AppSearchIndex {
+
+	@Synchronized fun update(pkg: String, label: String?) {
+		val terms = buildTerms(pkg, label)
+		val id = mIds[pkg]
+		if (id != null && Arrays.equals(mTerms[id], terms)) return
+		mLastQuery = null
+		if (id != null) {
+			mTerms[id]?.forEach { term -> forEachBigram(term) { mPostings[it]?.clear(id) }}
+			mTerms[id] = terms
+			index(id, terms)
+		} else {
+			val newId = mTerms.size
+			mIds[pkg] = newId
+			mPackages += pkg
+			mTerms += terms
+			index(newId, terms)
+		}
+	}
+
+	@Synchronized fun remove(pkg: String) {
+		val id = mIds.remove(pkg) ?: return
+		mLastQuery = null
+		mTerms[id]?.forEach { term -> forEachBigram(term) { mPostings[it]?.clear(id) }}
+		mTerms[id] = null     // Tombstone, the slot is not reused to keep ids stable.
+	}
+
+	/**
+	 * @return packages with label, package name, pinyin or initials matching the query as prefix or substring.
+	 *         The result of last query is cached until the index is changed, thus cheap to call repeatedly.
+	 */
+	@Synchronized fun search(query: String): Set<String> {
+		if (query == mLastQuery) return mLastResult
+		return doSearch(query).also { mLastQuery = query; mLastResult = it }
+	}
+
+	private fun doSearch(query: String): Set<String> {
+		val normalized = normalize(query)
+		if (normalized.isEmpty()) return emptySet()
+		var candidates: BitSet? = null
+		if (normalized.length >= 2) for (i in 0 until normalized.length - 1) {
+			val posting = mPostings[bigram(normalized[i], normalized[i + 1])] ?: return emptySet()
+			candidates = candidates?.apply { and(posting) } ?: posting.clone() as BitSet
+			if (candidates.isEmpty) return emptySet()
+		}
+		val result = HashSet<String>()
+		val verify = { id: Int -> if (mTerms[id]?.any { it.contains(normalized) } == true) result += mPackages[id] }
+		if (candidates != null) {
+			var id = candidates.nextSetBit(0)
+			while (id >= 0) { verify(id); id = candidates.nextSetBit(id + 1) }
+		} else for (id in mTerms.indices) verify(id)      // Single character, scan all.
+		return result
+	}
+
+	private fun index(id: Int, terms: Array<String>) = terms.forEach { term ->
+		forEachBigram(term) { mPostings.getOrPut(it) { BitSet() }.set(id) }}
+
+	private inline fun forEachBigram(term: String, block: (Int) -> Unit) {
+		for (i in 0 until term.length - 1) block(bigram(term[i], term[i + 1]))
+	}
+
+	private fun bigram(c1: Char, c2: Char) = (c1.toInt() shl 16) or c2.toInt()
+
+	private fun buildTerms(pkg: String, label: String?): Array<String> {
+		if (label == null || label == pkg) return arrayOf(normalize(pkg))
+		val normalizedLabel = normalize(label)
+		val pinyin = if (containsHan(label)) toPinyin(label) else null
+		return if (pinyin == null) arrayOf(normalizedLabel, normalize(pkg))
+		else arrayOf(normalizedLabel, normalize(pkg), pinyin.joinToString(""), pinyin.joinToString("") { it.take(1) })
+	}
+
+	private fun containsHan(text: String) = text.codePoints().anyMatch { Character.UnicodeScript.of(it) == Character.UnicodeScript.HAN }
+
+	/** @return syllables in pinyin, or null if not supported */
+	private fun toPinyin(label: String): List<String>? {
+		val transliterator = sTransliterator ?: return null
+		return transliterator.transliterate(label).split(' ').filter { it.isNotEmpty() }.map { normalize(it) }
+	}
+
+	private val mIds = HashMap<String, Int>()
+	private val mPackages = ArrayList<String>()
+	private val mTerms = ArrayList<Array<String>?>()
+	private val mPostings = HashMap<Int, BitSet>()
+	private var mLastQuery: String? = null
+	private var mLastResult: Set<String> = emptySet()
+
+	companion object {
+
+		fun normalize(text: String): String {
+			val lowerCased = text.toLowerCase(Locale.ROOT)
+			if (lowerCased.all { it < '\u0080' }) return lowerCased      // Fast path for ASCII
+			return COMBINING_MARKS.replace(Normalizer.normalize(lowerCased, Normalizer.Form.NFD), "")
+		}
+
+		private val COMBINING_MARKS = Regex("\\p{Mn}+")
+
+		private val sTransliterator: Transliterator? by lazy {
+			if (SDK_INT < Q) null else try { Transliterator.getInstance("Han-Latin; Latin-ASCII") }
+			catch (e: IllegalArgumentException) { null.also { Log.w(TAG, "Han-Latin transliterator is unavailable", e) }}}
+	}
+}
+
+private const val TAG = "Island.ASI"
@@ -6,18 +6,32 @@ import android.content.Intent
 import android.content.Intent.EXTRA_USER
 import android.content.IntentFilter
 import android.content.pm.ApplicationInfo
+import android.content.pm.ChangedPackages
 import android.content.pm.LauncherApps
 import android.content.pm.PackageManager.MATCH_UNINSTALLED_PACKAGES
+import android.os.AsyncTask
+import android.os.Build.VERSION.SDK_INT
+import android.os.Build.VERSION_CODES.O
+import android.os.Handler
+import android.os.Looper
 import android.os.UserHandle
 import android.util.ArrayMap
 import android.util.Log
+import androidx.annotation.MainThread
+import androidx.annotation.RequiresApi
+import androidx.annotation.WorkerThread
 import com.oasisfeng.android.content.pm.LauncherAppsCompat
 import com.oasisfeng.android.os.UserHandles
 import com.oasisfeng.common.app.AppListProvider
+import com.oasisfeng.common.app.AppListSnapshot
+import com.oasisfeng.common.app.PackageEventCoalescer
+import com.oasisfeng.island.data.helper.hidden
 import com.oasisfeng.island.data.helper.installed
+import com.oasisfeng.island.data.helper.suspended
 import com.oasisfeng.island.engine.ClonedHiddenSystemApps
 import com.oasisfeng.island.provisioning.CriticalAppsManager
 import com.oasisfeng.island.provisioning.SystemAppsManager
+import com.oasisfeng.island.shuttle.Shuttle
 import com.oasisfeng.island.util.Users
 import com.oasisfeng.island.util.toId
 import java.util.function.Predicate
@@ -78,13 +92,27 @@ class IslandAppListProvider : AppListProvider<IslandAppInfo>() {
 		}
 	}
 
+	/** Search index of apps in all users (labels and package names are the same across users), kept current by package events. */
+	val searchIndex: AppSearchIndex get() = mSearchIndex.value
+
+	override fun notifyUpdate(apps: Collection<IslandAppInfo>) {
+		if (mSearchIndex.isInitialized()) apps.forEach { searchIndex.update(it.packageName, it.label) }
+		super.notifyUpdate(apps)
+	}
+
+	override fun notifyRemoval(apps: Collection<IslandAppInfo>) {
+		if (mSearchIndex.isInitialized()) apps.forEach { if (Users.isOwner(it.user)) searchIndex.remove(it.packageName) }  // Entries in owner user cover all users.
+		super.notifyRemoval(apps)
+	}
+
 	fun installedApps(profile: UserHandle): Stream<IslandAppInfo> {
 		return if (Users.isOwner(profile)) installedAppsInOwnerUser() else loadAppsInProfileIfNotYet(profile).values.stream()
 	}
 
 	private fun loadAppsInProfileIfNotYet(profile: UserHandle): Map<String, IslandAppInfo>
 			= if (! Users.isProfileManagedByIsland(profile)) emptyMap()
-			else mIslandAppMap.getOrPut(profile) { ArrayMap<String, IslandAppInfo>().apply { refresh(this, profile) }}
+			else mIslandAppMap.getOrPut(profile) { ArrayMap<String, IslandAppInfo>().apply {
+				if (SDK_INT < O || ! refreshIncrementally(this, profile)) refresh(this, profile) }}
 
 	private fun initializeMonitor() {
 		Log.d(TAG, "Initializing monitor...")
@@ -96,12 +124,55 @@ class IslandAppListProvider : AppListProvider<IslandAppInfo>() {
 				val profile = intent.getParcelableExtra<UserHandle>(EXTRA_USER) ?: return
 				Log.i(TAG, "Profile removed: ${profile.toId()}")
 				mIslandAppMap[profile]?.clear()
+				mSnapshots.remove(profile)
 			}
 		}, IntentFilter(Intent.ACTION_MANAGED_PROFILE_REMOVED))
 
 		mClonedHiddenSystemApps.migrateIfNeeded()
 	}
 
+	/**
+	 * Serve from the snapshot, to avoid the per-package cross-user call in [refresh].
+	 * Changes since then are queried in the profile (via [Shuttle]) off the main thread, and applied as package events,
+	 * along with packages whose hidden or suspended state differs from that in snapshot (not tracked by package sequence number).
+	 * Both are queried in one cross-profile transaction.
+	 */
+	@RequiresApi(O) private fun refreshIncrementally(outApps: MutableMap<String, IslandAppInfo>, profile: UserHandle): Boolean {
+		val snapshot = getSnapshot(profile)
+		val entries = snapshot.load() ?: return false
+		entries.forEach { outApps[it.info.packageName] = IslandAppInfo(this, profile, it.info, null) }
+		Log.d(TAG, "Loaded ${entries.size} apps in Island ${profile.toId()} from snapshot")
+		AsyncTask.execute { val changedPkgs = queryChangesSinceSnapshot(profile, snapshot, entries)
+			mMainHandler.post { applyChangesSinceSnapshot(profile, changedPkgs) }}
+		return true
+	}
+
+	/** @return packages changed or in different hidden / suspended state since snapshot, or null if unavailable. */
+	@RequiresApi(O) @WorkerThread private fun queryChangesSinceSnapshot(profile: UserHandle, snapshot: AppListSnapshot, entries: List<AppListSnapshot.Entry>): List<String>? {
+		val sequenceNumber = snapshot.sequenceNumber.takeIf { it >= 0 } ?: return null
+		val results = try { Shuttle(context(), to = profile).invokeAll(listOf<Context.() -> Any?>(
+				{ packageManager.getChangedPackages(sequenceNumber) },
+				{ queryFrozenOrSuspendedStates(this) })) }
+		catch (e: RuntimeException) { return null.also { Log.w(TAG, "Error querying changes in Island ${profile.toId()}", e) }}
+		val changedPkgs = snapshot.consumeChanges(results[0] as ChangedPackages?)
+		@Suppress("UNCHECKED_CAST") val states = results[1] as Map<String, Int>
+		return entries.filter { (states[it.info.packageName] ?: 0) != it.info.frozenOrSuspendedState }
+				.mapTo(LinkedHashSet(changedPkgs)) { it.info.packageName }.toList()
+	}
+
+	@MainThread private fun applyChangesSinceSnapshot(profile: UserHandle, changedPkgs: List<String>?) {
+		val appsInProfile = mIslandAppMap[profile] ?: return     // Profile removed
+		if (changedPkgs == null) {      // Sequence reset or shuttle not ready, fall back to full refresh.
+			val stale = ArrayList(appsInProfile.values)
+			appsInProfile.clear()
+			refresh(appsInProfile, profile)
+			return notifyChanges(ArrayList(appsInProfile.values), stale.filter { it.packageName !in appsInProfile }) }
+		Log.d(TAG, "${changedPkgs.size} changes in Island ${profile.toId()} since snapshot")
+		if (changedPkgs.isEmpty()) return
+		changedPkgs.forEach { packageEventsInProfiles.post(Pair(it, profile), EVENT_CHANGED) }
+		packageEventsInProfiles.flush()     // Snapshot is re-saved in onPackageEvents()
+	}
+
 	private fun refresh(outApps: MutableMap<String, IslandAppInfo>, profile: UserHandle) {
 		val la = mLauncherApps
 		val visible = la.getActivityList(null, profile).asSequence().map { it.applicationInfo }.associateBy { it.packageName }  // Collect all unfrozen apps first in one API call.
@@ -109,8 +180,26 @@ class IslandAppListProvider : AppListProvider<IslandAppInfo>() {
 			visible[pkg] ?: la.getAppInfo(pkg, MATCH_UNINSTALLED_PACKAGES, profile)?.takeIf { it.installed }}
 				.forEach { info -> outApps[info.packageName] = IslandAppInfo(this, profile, info, null) }
 		Log.d(TAG, "Refreshed apps in Island ${profile.toId()}")
+		if (SDK_INT < O) return
+		// Sequence number is queried (via Shuttle) off the main thread after the enumeration above. Changes in between are
+		// delivered as package events, upon which the snapshot is re-saved.
+		val snapshot = getSnapshot(profile); val copy = ArrayList(outApps.values)
+		AsyncTask.execute { val sequenceNumber = snapshot.prepare()
+			if (sequenceNumber >= 0) snapshot.save(sequenceNumber, copy) }
+	}
+
+	@RequiresApi(O) private fun saveSnapshot(snapshot: AppListSnapshot, sequenceNumber: Int, apps: Map<String, IslandAppInfo>) {
+		if (sequenceNumber < 0) return
+		val copy = ArrayList(apps.values)
+		AsyncTask.execute { snapshot.save(sequenceNumber, copy) }
 	}
 
+	/** Package sequence number is per-user, thus queried in the profile via [Shuttle]. */
+	@RequiresApi(O) private fun getSnapshot(profile: UserHandle) = mSnapshots.getOrPut(profile) {
+		val context = context()
+		AppListSnapshot(context, "app_list.${profile.toId()}.snapshot") { sequence ->
+			Shuttle(context, to = profile).invoke(with = sequence) { packageManager.getChangedPackages(it) }}}
+
 	private fun LauncherApps.getAppInfo(pkg: String, flags: Int, user: UserHandle): ApplicationInfo?
 			= LauncherAppsCompat.getApplicationInfoNoThrows(this, pkg, flags, user)
 	private fun getApplicationInfo(pkg: String, profile: UserHandle): ApplicationInfo? {
@@ -122,11 +211,17 @@ class IslandAppListProvider : AppListProvider<IslandAppInfo>() {
 	}
 
 	fun refreshPackage(pkg: String, profile: UserHandle, add: Boolean) {
+		val updated = ArrayList<IslandAppInfo>(1); val removed = ArrayList<IslandAppInfo>(1)
+		refreshPackage(pkg, profile, add, updated, removed)
+		notifyChanges(updated, removed)
+	}
+
+	private fun refreshPackage(pkg: String, profile: UserHandle, add: Boolean, outUpdated: MutableList<IslandAppInfo>, outRemoved: MutableList<IslandAppInfo>) {
 		Log.d(TAG, "Update: " + pkg + if (add) " for pkg add" else " for pkg change")
 		val info = getApplicationInfo(pkg, profile)
 		val appsInProfile = mIslandAppMap[profile] ?: return
 		if (info == null) {
-			appsInProfile.remove(pkg)?.also { notifyRemoval(setOf(it)) }
+			appsInProfile.remove(pkg)?.also { outRemoved += it }
 			return }
 		val last = appsInProfile[pkg]
 		val app = IslandAppInfo(this, profile, info, last?.takeIf { it.isPlaceHolder })
@@ -134,7 +229,48 @@ class IslandAppListProvider : AppListProvider<IslandAppInfo>() {
 			Log.w(TAG, "Correct the flag for unhidden package: $pkg")
 			app.isHidden = false }
 		appsInProfile[pkg] = app
-		notifyUpdate(setOf(app))
+		outUpdated += app
+	}
+
+	private fun onPackageRemoved(pkg: String, profile: UserHandle, outUpdated: MutableList<IslandAppInfo>, outRemoved: MutableList<IslandAppInfo>) {
+		val appsInProfile = mIslandAppMap[profile] ?: return
+		val app = appsInProfile[pkg] ?: return Unit.also { Log.e(TAG, "Removed package not found in Island: $pkg") }
+		if (app.isHidden) return  // The removal callback is triggered by freezing.
+		val info = getApplicationInfo(pkg, profile)
+		if (info != null && info.flags and ApplicationInfo.FLAG_INSTALLED != 0) {    // Frozen
+			val newInfo = IslandAppInfo(this, profile, info, appsInProfile[pkg])
+			if (!newInfo.isHidden) {
+				Log.w(TAG, "Correct the flag for hidden package: $pkg")
+				newInfo.isHidden = true
+			}
+			appsInProfile[pkg] = newInfo
+			outUpdated += newInfo
+		} else appsInProfile.remove(pkg)?.also { outRemoved += it }    // Uninstalled in profile
+	}
+
+	private fun onPackageEvents(events: Map<Pair<String, UserHandle>, Int>) {
+		val updated = ArrayList<IslandAppInfo>(); val removed = ArrayList<IslandAppInfo>()
+		events.forEach { (key, event) -> val (pkg, profile) = key
+			when (event) {
+				EVENT_REMOVED -> onPackageRemoved(pkg, profile, updated, removed)
+				else -> refreshPackage(pkg, profile, event == EVENT_ADDED, updated, removed) }}
+		notifyChanges(updated, removed)
+
+		// Hidden and suspended states are not covered by package sequence number, thus snapshot is re-saved with the same sequence number.
+		if (SDK_INT >= O) events.keys.mapTo(HashSet()) { it.second }.forEach { profile ->
+			val snapshot = mSnapshots[profile] ?: return@forEach
+			saveSnapshot(snapshot, snapshot.sequenceNumber, mIslandAppMap[profile] ?: return@forEach) }
+	}
+
+	/** Refresh packages changed in batch (e.g. by batch freezing), with one notification for all. */
+	@MainThread fun refreshPackages(pkgs: Collection<Pair<String, UserHandle>>) {
+		pkgs.forEach { packageEventsInProfiles.post(it, EVENT_CHANGED) }
+		packageEventsInProfiles.flush()
+	}
+
+	private fun notifyChanges(updated: Collection<IslandAppInfo>, removed: Collection<IslandAppInfo>) {
+		if (updated.isNotEmpty()) notifyUpdate(updated)
+		if (removed.isNotEmpty()) notifyRemoval(removed)
 	}
 
 	/** Freezing or disabling a critical app may cause malfunction to other apps or the whole system.  */
@@ -144,49 +280,27 @@ class IslandAppListProvider : AppListProvider<IslandAppInfo>() {
 
 	private val mCallback: LauncherApps.Callback = object : LauncherApps.Callback() {
 
-		override fun onPackageRemoved(pkg: String, profile: UserHandle) {
-			val appsInProfile = mIslandAppMap[profile] ?: return
-			val app = appsInProfile[pkg] ?: return Unit.also { Log.e(TAG, "Removed package not found in Island: $pkg") }
-			if (app.isHidden) return  // The removal callback is triggered by freezing.
-			val info = getApplicationInfo(pkg, profile)
-			if (info != null && info.flags and ApplicationInfo.FLAG_INSTALLED != 0) {    // Frozen
-				val newInfo = IslandAppInfo(this@IslandAppListProvider, profile, info, appsInProfile[pkg])
-				if (!newInfo.isHidden) {
-					Log.w(TAG, "Correct the flag for hidden package: $pkg")
-					newInfo.isHidden = true
-				}
-				appsInProfile[pkg] = newInfo
-				notifyUpdate(setOf(newInfo))
-			} else {    // Uninstalled in profile
-				val removedApp = appsInProfile.remove(pkg)
-				if (removedApp != null) notifyRemoval(setOf(removedApp))
-			}
-		}
-
-		override fun onPackageAdded(pkg: String, user: UserHandle) {
-			refreshPackage(pkg, user, true)
-		}
-
-		override fun onPackageChanged(pkg: String, user: UserHandle) {
-			refreshPackage(pkg, user, false) // TODO: Filter out component-level changes
-		}
-
-		override fun onPackagesSuspended(pkgs: Array<out String>, user: UserHandle) = pkgs.forEach { pkg ->
-			refreshPackage(pkg, user, false)
-		}
+		override fun onPackageRemoved(pkg: String, profile: UserHandle) = post(pkg, profile, EVENT_REMOVED)
+		override fun onPackageAdded(pkg: String, user: UserHandle) = post(pkg, user, EVENT_ADDED)
+		override fun onPackageChanged(pkg: String, user: UserHandle) = post(pkg, user, EVENT_CHANGED)    // TODO: Filter out component-level changes
+		override fun onPackagesSuspended(pkgs: Array<out String>, user: UserHandle) = pkgs.forEach { post(it, user, EVENT_CHANGED) }
+		override fun onPackagesUnsuspended(pkgs: Array<out String>, user: UserHandle) = pkgs.forEach { post(it, user, EVENT_CHANGED) }
 
-		override fun onPackagesUnsuspended(pkgs: Array<out String>, user: UserHandle) = pkgs.forEach { pkg ->
-			refreshPackage(pkg, user, false)
-		}
+		private fun post(pkg: String, user: UserHandle, event: Int) = packageEventsInProfiles.post(Pair(pkg, user), event)
 
 		override fun onPackagesAvailable(pkgs: Array<String>, user: UserHandle, replacing: Boolean) { Log.e(TAG, "onPackagesAvailable() is unsupported") }
 		override fun onPackagesUnavailable(pkgs: Array<String>, user: UserHandle, replacing: Boolean) { Log.e(TAG, "onPackagesUnavailable() is unsupported") }
 	}
 
+	/** Coalesced package events in profiles, with counters of events received and coalesced */
+	val packageEventsInProfiles = PackageEventCoalescer<Pair<String, UserHandle>>(TAG, PACKAGE_EVENTS_WINDOW) { onPackageEvents(it) }
 	private val mIslandAppMap by lazy { initializeMonitor(); ArrayMap<UserHandle, MutableMap<String, IslandAppInfo>>() }
+	private val mSnapshots = ArrayMap<UserHandle, AppListSnapshot>()
+	private val mMainHandler = Handler(Looper.getMainLooper())
+	private val mSearchIndex = lazy { AppSearchIndex().apply { installedAppsInOwnerUser().forEach { update(it.packageName, it.label) }}}
 	private val mLauncherApps by lazy { context().getSystemService(Context.LAUNCHER_APPS_SERVICE) as LauncherApps }
 	private val mClonedHiddenSystemApps by lazy { ClonedHiddenSystemApps(context()) }
-	private val mCriticalSystemPackages by lazy { SystemAppsManager.detectCriticalSystemPackages(context().packageManager) }
+	private val mCriticalSystemPackages by lazy { SystemAppsManager.detectCriticalSystemPackages(context()) }
 
 	companion object {
 		@JvmStatic fun getInstance(context: Context): IslandAppListProvider = AppListProvider.getInstance(context)
@@ -195,4 +309,14 @@ class IslandAppListProvider : AppListProvider<IslandAppInfo>() {
 	}
 }
 
+private val ApplicationInfo.frozenOrSuspendedState get() = (if (hidden) 1 else 0) or (if (suspended) 2 else 0)
+
+/** @return package to its non-zero [frozenOrSuspendedState], for all packages installed in the user of context */
+private fun queryFrozenOrSuspendedStates(context: Context) = HashMap<String, Int>().apply {
+	context.packageManager.getInstalledApplications(MATCH_UNINSTALLED_PACKAGES).forEach {
+		if (it.installed && it.frozenOrSuspendedState != 0) put(it.packageName, it.frozenOrSuspendedState) }}
+
+private const val EVENT_CHANGED = 0
+private const val EVENT_ADDED = 1
+private const val EVENT_REMOVED = 2
 private const val TAG = "Island.ALP"
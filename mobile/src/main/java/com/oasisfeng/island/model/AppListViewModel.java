@@ -42,6 +42,7 @@ import com.oasisfeng.common.app.BaseAppListViewModel;
 import com.oasisfeng.island.analytics.Analytics;
 import com.oasisfeng.island.controller.IslandAppClones;
 import com.oasisfeng.island.controller.IslandAppControl;
+import com.oasisfeng.island.data.AppSearchIndex;
 import com.oasisfeng.island.data.IslandAppInfo;
 import com.oasisfeng.island.data.IslandAppListProvider;
 import com.oasisfeng.island.featured.FeaturedListViewModel;
@@ -58,6 +59,10 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Predicate;
 
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -147,25 +152,49 @@ public class AppListViewModel extends BaseAppListViewModel<AppViewModel> {
 				final String pkg = text.substring(8);
 				filters = filters.and(app -> app.packageName.equals(pkg));
 			} else {
-				final String text_lc = text.toLowerCase();
-				filters = filters.and(app -> app.packageName.toLowerCase().contains(text_lc) || app.getLabel().toLowerCase().contains(text_lc));
+				final AppSearchIndex index = mAppListProvider.getSearchIndex();
+				index.search(text);		// Search once on main thread, the result is cached for the filter below.
+				filters = filters.and(app -> index.search(text).contains(app.packageName));
 			}
 		}
 		mActiveFilters = filters;
 
-		final AppViewModel selected = mSelection.getValue();
-		clearSelection();
-
-		IslandAppInfo.cacheLaunchableApps(requireNonNull(mAppListProvider.getContext()));	// Performance optimization
-		final List<AppViewModel> apps = mAppListProvider.installedApps(profile).filter(filters).map(AppViewModel::new).collect(toList());
-		IslandAppInfo.invalidateLaunchableAppsCache();
-		replaceApps(apps);
-
-		if (selected != null) for (final AppViewModel app : apps)
-			if (app.info().packageName.equals(selected.info().packageName)) {
-				setSelection(app);
-				break;
+		// Collect candidates on main thread since app maps in provider are not thread-safe, then filter, sort and diff in background.
+		final List<IslandAppInfo> candidates = mAppListProvider.installedApps(profile).collect(toList());
+		final Map<String, AppViewModel> base = snapshotApps();
+		final Context context = requireNonNull(mAppListProvider.getContext());
+		final Predicate<IslandAppInfo> active_filters = filters;
+		final int generation = ++ mUpdateGeneration;		// Any computation of earlier generation is stale since now.
+		if (mPendingUpdate != null) mPendingUpdate.cancel(false);
+		mPendingUpdate = UPDATE_EXECUTOR.submit(() -> {
+			final List<AppViewModel> apps;
+			IslandAppInfo.cacheLaunchableApps(context);	// Performance optimization
+			try {
+				apps = candidates.stream().filter(app -> {
+					if (generation != mUpdateGeneration) throw new CancellationException();
+					return active_filters.test(app);
+				}).map(AppViewModel::new).collect(toList());	// Sorted by ObservableSortedList
+			} catch (final CancellationException e) {
+				return;
+			} finally {
+				IslandAppInfo.invalidateLaunchableAppsCache();
 			}
+			final AppListDiff<AppViewModel> diff = diff(base, apps);
+			Log.d(TAG, "Updated: " + diff);
+			mHandler.post(() -> {
+				if (generation != mUpdateGeneration) return;
+				if (! profile.equals(mShownProfile)) {		// Never keep entries (or selection) of another user in place.
+					mShownProfile = profile;
+					clearSelection();
+					replaceApps(apps);
+				} else if (! diff.isEmpty()) applyDiff(diff);
+			});
+		});
+	}
+
+	@Override protected void onCleared() {
+		mUpdateGeneration ++;
+		if (mPendingUpdate != null) mPendingUpdate.cancel(false);
 	}
 
 	public AppListViewModel(final Application app, final SavedStateHandle savedState) {
@@ -280,10 +309,11 @@ public class AppListViewModel extends BaseAppListViewModel<AppViewModel> {
 			} else freezeApp(context, selection);
 		} else if (id == R.id.menu_unfreeze) {
 			Analytics.$().event("action_unfreeze").with(ITEM_ID, pkg).send();
-			if (IslandAppControl.unfreeze(app)) {
+			IslandAppControl.unfreeze(app).thenAccept(unfrozen -> {
+				if (! unfrozen) return;
 				refreshAppStateAsSysBugWorkaround(context, app);
 				clearSelection();
-			}
+			});
 		} else if (id == R.id.menu_app_settings) {
 			IslandAppControl.launchExternalAppSettings(this, app);
 		} else if (id == R.id.menu_remove || id == R.id.menu_uninstall) {
@@ -355,14 +385,16 @@ public class AppListViewModel extends BaseAppListViewModel<AppViewModel> {
 
 	private void freezeApp(final Context context, final AppViewModel app_vm) {
 		final IslandAppInfo app = app_vm.info();
-		if (IslandAppControl.freeze(app)) {
-			// Select the next app for convenient continuous freezing.
-			final int next_index = indexOf(app_vm) + 1;
-			final AppViewModel next;
-			if (next_index < size() && (next = getAppAt(next_index)).state == AppViewModel.State.Alive) setSelection(next);
-			else clearSelection();
-		}
-		refreshAppStateAsSysBugWorkaround(context, app);
+		IslandAppControl.freeze(app).thenAccept(frozen -> {
+			if (frozen) {	// Select the next app for convenient continuous freezing.
+				final AppViewModel current = getApp(app.packageName);	// The view-model might be replaced (updated in place) in the meantime.
+				final int index = current != null && current.info().user.equals(app.user) ? indexOf(current) : -1;
+				final AppViewModel next;
+				if (index >= 0 && index + 1 < size() && (next = getAppAt(index + 1)).state == AppViewModel.State.Alive) setSelection(next);
+				else clearSelection();
+			}
+			refreshAppStateAsSysBugWorkaround(context, app);
+		});
 	}
 
 	private void onShortcutRequested(final Context context) {
@@ -459,6 +491,11 @@ public class AppListViewModel extends BaseAppListViewModel<AppViewModel> {
 	private final boolean mOwnerUserManaged;
 	private Predicate<IslandAppInfo> mActiveFilters;		// The active composite filters
 	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private volatile int mUpdateGeneration;
+	private @Nullable UserHandle mShownProfile;		// The profile of apps currently shown
+	private Future<?> mPendingUpdate;
+	/** Single thread to serialize the computations, as launchable apps cache in {@link IslandAppInfo} is static. */
+	private static final ExecutorService UPDATE_EXECUTOR = Executors.newSingleThreadExecutor(r -> new Thread(r, "AppList.Update"));
 
 	private static final String TAG = "Island.Apps";
 }
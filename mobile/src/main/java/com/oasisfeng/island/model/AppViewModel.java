@@ -77,7 +77,7 @@ public class AppViewModel extends BaseAppViewModel implements ObservableSortedLi
 	}
 
 	@Override public boolean isContentSameAs(final AppViewModel another) {
-		return super.isContentSameAs(another) && state == another.state;
+		return super.isContentSameAs(another) && state == another.state && info().user.equals(another.info().user);
 	}
 
 	@Override public int compareTo(@NonNull final AppViewModel another) {
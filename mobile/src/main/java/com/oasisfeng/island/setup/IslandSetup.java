@@ -206,7 +206,7 @@ public class IslandSetup {
 		if (Users.isOwner()) throw new IllegalStateException("Must be called in managed profile.");
 		final DevicePolicies policies = new DevicePolicies(activity);
 		try {
-			policies.execute(DevicePolicyManager::clearCrossProfileIntentFilters);
+			policies.clearCrossProfileIntentFilters();
 			policies.getManager().wipeData(0);
 		} catch(final RuntimeException e) {
 			showPromptForProfileManualRemoval(activity);
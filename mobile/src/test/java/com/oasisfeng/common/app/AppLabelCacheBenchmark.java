@@ -0,0 +1,23 @@
+package com.oasisfeng.common.app;
+
+import com.oasisfeng.benchmark.Benchmark;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class AppLabelCacheBenchmark {
+
+	@Test public void filterStringClean() {
+		sBenchmark.measure("filterString-clean", () -> AppLabelCache.filterString("Island - Sandbox & Parallel Apps"));
+	}
+
+	@Test public void filterStringWithControlChars() {
+		sBenchmark.measure("filterString-dirty", () -> AppLabelCache.filterString("Island\n - Sandbox\t& Parallel Apps\u0001"));
+	}
+
+	@AfterClass public static void report() throws IOException { sBenchmark.report(); }
+
+	private static final Benchmark sBenchmark = new Benchmark("AppLabelCacheBenchmark");
+}
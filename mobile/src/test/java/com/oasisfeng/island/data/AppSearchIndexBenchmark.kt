@@ -0,0 +1,55 @@
+package com.oasisfeng.island.data
+
+import android.content.pm.ApplicationInfo
+import com.oasisfeng.benchmark.Benchmark
+import com.oasisfeng.benchmark.Benchmark.params
+import org.junit.AfterClass
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.function.Predicate
+import kotlin.random.Random
+
+/**
+ * The filter chain of app list (as in AppListViewModel.updateAppList()) over synthetic apps,
+ * with the search filter backed by [AppSearchIndex]. IslandAppInfo is not used as it requires a live provider.
+ */
+@RunWith(RobolectricTestRunner::class) @Config(sdk = [29])
+class AppSearchIndexBenchmark {
+
+	@Test fun buildIndex() = SIZES.forEach { size ->
+		val apps = buildApps(size)
+		sBenchmark.measure("buildIndex", params("apps", size.toString())) {
+			AppSearchIndex().apply { apps.forEach { update(it.packageName, it.nonLocalizedLabel.toString()) }}}
+	}
+
+	@Test fun filterChain() = SIZES.forEach { size ->
+		val apps = buildApps(size)
+		val index = AppSearchIndex().apply { apps.forEach { update(it.packageName, it.nonLocalizedLabel.toString()) }}
+		QUERIES.forEach { query ->
+			val filters = Predicate<ApplicationInfo> { it.flags and ApplicationInfo.FLAG_INSTALLED != 0 }
+					.and { it.flags and ApplicationInfo.FLAG_SYSTEM == 0 || it.enabled }
+					.and { index.search(query).contains(it.packageName) }
+			sBenchmark.measure("filterChain", params("apps", size.toString(), "query", query)) {
+				index.search(query + "\u0000").size     // Bypass the cache of last query, to measure the actual search.
+				apps.count { filters.test(it) }}}
+	}
+
+	private fun buildApps(count: Int): List<ApplicationInfo> {
+		val random = Random(count)
+		return List(count) { i -> ApplicationInfo().apply {
+			packageName = "com.${WORDS.random(random)}.${WORDS.random(random)}$i"
+			nonLocalizedLabel = "${WORDS.random(random).capitalize()} ${WORDS.random(random)} ${if (i % 10 == 0) "应用$i" else ""}".trim()
+			flags = ApplicationInfo.FLAG_INSTALLED or (if (i % 5 == 0) ApplicationInfo.FLAG_SYSTEM else 0)
+			enabled = i % 7 != 0 }}
+	}
+
+	companion object {
+		private val SIZES = listOf(1_000, 10_000)
+		private val QUERIES = listOf("c", "cam", "island", "应用")
+		private val WORDS = listOf("island", "camera", "gallery", "music", "player", "note", "chat", "mail", "map", "weather", "clock", "shop")
+		private val sBenchmark = Benchmark("AppSearchIndexBenchmark")
+		@AfterClass @JvmStatic fun report() { sBenchmark.report() }
+	}
+}
@@ -49,7 +49,7 @@ class DelegatedScopeAuthorization : RestrictionsReceiver() {
         val user = UserHandles.of(request.getInt(ApiConstants.REQUEST_KEY_USER_SERIAL_NUMBER, -2))
 
         if (BuildConfig.DEBUG && requestType == "-" + ApiConstants.TYPE_DELEGATION)
-            return DelegationManager.removeAuthorizedDelegation(DevicePolicies(context), pkg, user, delegation)
+            return DelegationManager.removeAuthorizedDelegation(context, pkg, user, delegation)
         if (requestType != ApiConstants.TYPE_DELEGATION) return logAndToast(context, pkg, "Unsupported request type: $requestType")
 
         // Use meta-data instead of restrictions XML declaration, to avoid declared restriction being unintentionally recognized by other DPC.
@@ -93,7 +93,7 @@ class DelegatedScopeAuthorization : RestrictionsReceiver() {
 
     private fun onRequestReactedByUser(context: Context, authorized: Boolean, requestId: String?, pkg: String, user: UserHandle, delegation: String) {
         notifyAuthorizationResult(context, pkg, requestId, if (authorized) RESULT_APPROVED else RESULT_DENIED)
-        if (authorized) DelegationManager.addAuthorizedDelegation(DevicePolicies(context), pkg, user, delegation)
+        if (authorized) DelegationManager.addAuthorizedDelegation(context, pkg, user, delegation)
         NotificationIds.Authorization.cancel(context, requestId)
     }
 
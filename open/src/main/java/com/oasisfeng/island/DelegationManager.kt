@@ -1,36 +1,54 @@
 package com.oasisfeng.island
 
 import android.app.admin.DevicePolicyManager
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.net.Uri
 import android.os.Build.VERSION.SDK_INT
 import android.os.Build.VERSION_CODES.O
 import android.os.Bundle
+import android.os.Process
 import android.os.UserHandle
+import android.util.Log
 import androidx.annotation.WorkerThread
 import com.oasisfeng.island.util.DevicePolicies
-import java.util.concurrent.ConcurrentHashMap
+import com.oasisfeng.island.util.Modules
+import java.util.concurrent.atomic.AtomicReference
 
 /**
  * Manage the state of authorized delegation
  *
+ * Authorized delegations of all packages are loaded once into an immutable snapshot, which is replaced atomically
+ * with a new version upon each change. Changes are propagated across processes of Island by broadcast, upon which
+ * the delegations of changed package are reloaded from the source of truth (delegated scopes or app restrictions).
+ *
  * TODO: Support authorization granularity by user
  *
  * Created by Oasis on 2019-6-11.
  */
-class DelegationManager(policies: DevicePolicies) {
+class DelegationManager(context: Context) {
 
-    @WorkerThread fun isDelegationAuthorized(pkg: String, user: UserHandle, delegation: String): Boolean {
-        if (mCacheIndex < sChangeIndex) mAppDelegationState.clear().also { mCacheIndex = sChangeIndex }
-        val key = "$pkg:$delegation"
-        return mAppDelegationState[key] ?: isDelegationAuthorized(mPolicies, pkg, user, delegation).also { mAppDelegationState[key] = it }
+    @WorkerThread fun isDelegationAuthorized(pkg: String, @Suppress("UNUSED_PARAMETER") user: UserHandle, delegation: String): Boolean {
+        return getSnapshot(mContext, mPolicies).isAuthorized(pkg, delegation)
     }
 
-    private val mPolicies = policies
-    private val mAppDelegationState = ConcurrentHashMap<String, Boolean>()
-    private var mCacheIndex = sChangeIndex
+    private val mContext = context.applicationContext
+    private val mPolicies = DevicePolicies(context)
+
+    private class Snapshot(val version: Long, private val delegations: Map<String, Set<String>>) {
+
+        fun isAuthorized(pkg: String, delegation: String) = delegations[pkg]?.contains(delegation) == true
+
+        fun with(pkg: String, pkgDelegations: Set<String>) = Snapshot(version + 1, HashMap(delegations).apply {
+            if (pkgDelegations.isEmpty()) remove(pkg) else put(pkg, pkgDelegations) })
+    }
 
     companion object {
 
-        @WorkerThread fun addAuthorizedDelegation(policies: DevicePolicies, pkg: String, user: UserHandle, delegation: String) {
+        @WorkerThread fun addAuthorizedDelegation(context: Context, pkg: String, user: UserHandle, delegation: String) {
+            val policies = DevicePolicies(context)
             if (isDelegationSupportedByAndroid(delegation)) {
                 val existentScopes = policies.invoke(DevicePolicyManager::getDelegatedScopes, pkg)
                 if (existentScopes.contains(delegation)) return
@@ -42,10 +60,11 @@ class DelegationManager(policies: DevicePolicies) {
                 restrictions.putStringArray(ApiConstants.TYPE_DELEGATION, existentDelegations?.plus(delegation) ?: arrayOf(delegation))
                 policies.execute(DevicePolicyManager::setApplicationRestrictions, pkg, restrictions)
             }
-            sChangeIndex ++
+            onDelegationChanged(context, policies, pkg)
         }
 
-        fun removeAuthorizedDelegation(policies: DevicePolicies, pkg: String, user: UserHandle?, delegation: String) {
+        fun removeAuthorizedDelegation(context: Context, pkg: String, user: UserHandle?, delegation: String) {
+            val policies = DevicePolicies(context)
             if (isDelegationSupportedByAndroid(delegation)) {
                 val existentScopes = policies.invoke(DevicePolicyManager::getDelegatedScopes, pkg)
                 if (! existentScopes.contains(delegation)) return
@@ -59,19 +78,90 @@ class DelegationManager(policies: DevicePolicies) {
                 else restrictions.putStringArray(ApiConstants.TYPE_DELEGATION, updatedDelegations.toTypedArray())
                 policies.execute(DevicePolicyManager::setApplicationRestrictions, pkg, restrictions)
             }
-            sChangeIndex ++
+            onDelegationChanged(context, policies, pkg)
         }
 
+        /** Check against the source of truth, bypassing the snapshot. */
         @WorkerThread fun isDelegationAuthorized(policies: DevicePolicies, pkg: String, user: UserHandle, delegation: String): Boolean {
             if (isDelegationSupportedByAndroid(delegation))
                 return policies.invoke(DevicePolicyManager::getDelegatedScopes, pkg).contains(delegation)
             return getDelegationsFromRestrictions(policies.getApplicationRestrictions(pkg))?.contains(delegation) ?: false
         }
 
-        private var sChangeIndex = 0   // Simple in-classloader cache invalidation mechanism, effective enough for infrequent changes.
+        /** Version of delegation snapshot in this process, changed upon each change of delegation, for invalidation of derived caches. */
+        @JvmStatic fun getChangeIndex() = sSnapshot.get()?.version ?: 0
+
+        private fun getSnapshot(context: Context, policies: DevicePolicies): Snapshot = sSnapshot.get() ?: synchronized(sSnapshot) {
+            sSnapshot.get() ?: loadSnapshot(context, policies).also {
+                context.registerReceiver(ChangeReceiver(), IntentFilter(ACTION_DELEGATION_CHANGED).apply { addDataScheme("package") })
+                context.registerReceiver(PackageReceiver(), IntentFilter(Intent.ACTION_PACKAGE_ADDED).apply {
+                    addAction(Intent.ACTION_PACKAGE_REMOVED); addDataScheme("package") })
+                sSnapshot.set(it) }}
+
+        private fun loadSnapshot(context: Context, policies: DevicePolicies): Snapshot {
+            val delegations = HashMap<String, Set<String>>()
+            for (app in context.packageManager.getInstalledApplications(0))
+                readDelegations(policies, app.packageName).takeIf { it.isNotEmpty() }?.also { delegations[app.packageName] = it }
+            Log.i(TAG, "Delegations loaded: $delegations")
+            return Snapshot(1, delegations)
+        }
+
+        private fun readDelegations(policies: DevicePolicies, pkg: String): Set<String> = try {
+            val restricted = getDelegationsFromRestrictions(policies.getApplicationRestrictions(pkg))?.asList() ?: emptyList()
+            if (SDK_INT < O) restricted.toSet()
+            else policies.invoke(DevicePolicyManager::getDelegatedScopes, pkg).filter(::isDelegationSupportedByAndroid).plus(restricted).toSet()
+        } catch (e: RuntimeException) { emptySet<String>().also { Log.w(TAG, "Error reading delegations of $pkg", e) }}
+
+        /** Reload delegations of the package into a new snapshot, if already loaded in this process */
+        private fun reload(policies: DevicePolicies, pkg: String) {
+            if (sSnapshot.get() == null) return
+            update(pkg, readDelegations(policies, pkg))
+        }
+
+        /** Delegations are revoked by Android along with the removed package, even if re-installed later. */
+        private fun drop(pkg: String) = update(pkg, emptySet())
+
+        private fun update(pkg: String, pkgDelegations: Set<String>) {
+            while (true) {
+                val current = sSnapshot.get() ?: return
+                if (sSnapshot.compareAndSet(current, current.with(pkg, pkgDelegations))) return
+            }
+        }
+
+        private fun onDelegationChanged(context: Context, policies: DevicePolicies, pkg: String) {
+            reload(policies, pkg)
+            Modules.broadcast(context, Intent(ACTION_DELEGATION_CHANGED, Uri.fromParts("package", pkg, null)).putExtra(EXTRA_PID, Process.myPid()))
+        }
+
+        private val sSnapshot = AtomicReference<Snapshot?>()
+    }
+
+    /** The content of broadcast is never trusted, it only triggers reloading from the source of truth. */
+    private class ChangeReceiver : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            if (intent.getIntExtra(EXTRA_PID, 0) == Process.myPid()) return     // Already reloaded in sender process
+            val pkg = intent.data?.schemeSpecificPart ?: return
+            val pending = goAsync()
+            Thread({ try { reload(DevicePolicies(context), pkg) } finally { pending.finish() }}, "DelegationManager.Reload").start()
+        }
+    }
+
+    /** Keep the snapshot consistent with package removal (not replacing) and (re-)installation. */
+    private class PackageReceiver : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            val pkg = intent.data?.schemeSpecificPart ?: return
+            if (intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) return      // Delegations are kept across update
+            if (intent.action == Intent.ACTION_PACKAGE_REMOVED) return drop(pkg)
+            val pending = goAsync()
+            Thread({ try { reload(DevicePolicies(context), pkg) } finally { pending.finish() }}, "DelegationManager.Reload").start()
+        }
     }
 }
 
+private const val ACTION_DELEGATION_CHANGED = "com.oasisfeng.island.action.DELEGATION_CHANGED"
+private const val EXTRA_PID = "pid"
+private const val TAG = "Island.DM"
+
 private fun DevicePolicies.getApplicationRestrictions(pkg: String) = invoke(DevicePolicyManager::getApplicationRestrictions, pkg)
 private fun getDelegationsFromRestrictions(restrictions: Bundle) = restrictions.getStringArray(ApiConstants.TYPE_DELEGATION)
 private fun isDelegationSupportedByAndroid(delegation: String): Boolean = SDK_INT >= O
@@ -1,18 +1,23 @@
 package com.oasisfeng.island;
 
-import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.IInterface;
 import android.os.Parcel;
 import android.os.RemoteException;
-import android.util.SparseArray;
-
-import com.oasisfeng.island.util.DevicePolicies;
+import android.os.SystemClock;
 
 import java.io.FileDescriptor;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -29,12 +34,10 @@ public class RestrictedBinderProxy extends Binder {
 	@Override protected boolean onTransact(final int code, @NonNull final Parcel data, @Nullable final Parcel reply, final int flags) throws RemoteException {
 		final int index = code - FIRST_CALL_TRANSACTION;
 		if (! mSealed) {	// In unsealed state, invoked codes are recorded as allowed ones in later invocation.
-			mAllowedCode.ensureCapacity(index + 1);
-			while (mAllowedCode.size() <= index) mAllowedCode.add(null);	// Ensure actual size
-			mAllowedCode.set(index, Boolean.TRUE);
+			if (index >= 0) allowCode(index);
 			return true;
 		} else {
-			if (index >= mAllowedCode.size() || mAllowedCode.get(index) != Boolean.TRUE) throw new SecurityException("Unauthorized");
+			if (! isCodeAllowed(index)) throw new SecurityException("Unauthorized");
 			if (! checkCallingDelegation()) throw new SecurityException("Require delegation authorization: " + mRequiredDelegation);
 			return doTransact(code, data, reply, flags);
 		}
@@ -44,26 +47,76 @@ public class RestrictedBinderProxy extends Binder {
 		return mDelegate.transact(code, data, reply, flags);
 	}
 
+	private synchronized void allowCode(final int index) {	// Copy-on-write, only before sealed.
+		final long[] bits = mAllowedCodes.length > index >> 6 ? mAllowedCodes.clone() : Arrays.copyOf(mAllowedCodes, (index >> 6) + 1);
+		bits[index >> 6] |= 1L << index;
+		mAllowedCodes = bits;
+	}
+
+	private boolean isCodeAllowed(final int index) {
+		final long[] bits = mAllowedCodes;
+		return index >= 0 && index >> 6 < bits.length && (bits[index >> 6] & 1L << index) != 0;
+	}
+
 	private boolean checkCallingDelegation() {
 		if (mRequiredDelegation == null) return true;
 		final int uid = Binder.getCallingUid();
-		Boolean allowed = mUidVerificationCache.get(uid);
-		if (allowed != null) return allowed;
+		final long now = SystemClock.elapsedRealtime();
+		final int generation = sPackageGeneration.get();
+		final long delegation_index = DelegationManager.getChangeIndex();
+		final Decision cached = mUidDecisionCache.get(uid);
+		if (cached != null && cached.isValid(now, generation, delegation_index)) {
+			mCacheHits.incrementAndGet();
+			return cached.allowed;
+		}
+		mCacheMisses.incrementAndGet();
 
 		final String[] pkgs = mContext.getPackageManager().getPackagesForUid(uid);
 		if (pkgs == null) return false;		// Should hardly happen
 
-		allowed = false;
-		for (final String pkg : pkgs) allowed = mDelegationManager.isDelegationAuthorized(pkg, Binder.getCallingUserHandle(), mRequiredDelegation);
-		mUidVerificationCache.put(uid, allowed);
+		boolean allowed = false;
+		for (final String pkg : pkgs)
+			if (mDelegationManager.isDelegationAuthorized(pkg, Binder.getCallingUserHandle(), mRequiredDelegation)) { allowed = true; break; }
+		mUidDecisionCache.put(uid, new Decision(allowed, now + (allowed ? ALLOWED_TTL : DENIED_TTL), generation, delegation_index));
 		return allowed;
 	}
 
+	/** @return number of authorization checks served by cache */
+	public long getCacheHits() { return mCacheHits.get(); }
+	/** @return number of authorization checks requiring package and delegation lookup */
+	public long getCacheMisses() { return mCacheMisses.get(); }
+
+	private static class Decision {
+
+		boolean isValid(final long now, final int package_generation, final long delegation_index) {
+			return now < expiry && this.package_generation == package_generation && this.delegation_index == delegation_index;
+		}
+
+		Decision(final boolean allowed, final long expiry, final int package_generation, final long delegation_index) {
+			this.allowed = allowed; this.expiry = expiry; this.package_generation = package_generation; this.delegation_index = delegation_index;
+		}
+
+		final boolean allowed;
+		final long expiry;
+		final int package_generation;	// UID may be reused by another package after removal.
+		final long delegation_index;
+	}
+
+	private static void registerPackageRemovalReceiverIfNeeded(final Context context) {
+		if (sPackageReceiverRegistered.getAndSet(true)) return;
+		final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_REMOVED);
+		filter.addDataScheme("package");
+		context.getApplicationContext().registerReceiver(new BroadcastReceiver() { @Override public void onReceive(final Context c, final Intent intent) {
+			sPackageGeneration.incrementAndGet();		// Invalidate all cached decisions, since package removal is infrequent.
+		}}, filter);
+	}
+
 	public RestrictedBinderProxy(final Context context, final @Nullable String delegation, final IBinder delegate) {
 		mContext = context;
 		mDelegate = delegate;
 		mRequiredDelegation = delegation;
-		mDelegationManager = new DelegationManager(new DevicePolicies(context));
+		mDelegationManager = new DelegationManager(context);
+		if (delegation != null) registerPackageRemovalReceiverIfNeeded(context);
 		try {
 			attachInterface(null, mDelegate.getInterfaceDescriptor());
 		} catch (final RemoteException e) {
@@ -89,7 +142,14 @@ public class RestrictedBinderProxy extends Binder {
 	private final IBinder mDelegate;
 	private final String mRequiredDelegation;
 	private final DelegationManager mDelegationManager;
-	private boolean mSealed;
-	private final ArrayList<Boolean> mAllowedCode = new ArrayList<>();
-	@SuppressLint("UseSparseArrays") private final SparseArray<Boolean> mUidVerificationCache = new SparseArray<>();
+	private volatile boolean mSealed;
+	private volatile long[] mAllowedCodes = new long[0];		// Bitset of allowed (code - FIRST_CALL_TRANSACTION)
+	private final Map<Integer, Decision> mUidDecisionCache = new ConcurrentHashMap<>();
+	private final AtomicLong mCacheHits = new AtomicLong();
+	private final AtomicLong mCacheMisses = new AtomicLong();
+
+	private static final AtomicInteger sPackageGeneration = new AtomicInteger();
+	private static final AtomicBoolean sPackageReceiverRegistered = new AtomicBoolean();
+	private static final long ALLOWED_TTL = 60_000;
+	private static final long DENIED_TTL = 5_000;		// Shorter for prompt effect of authorization
 }
@@ -0,0 +1,54 @@
+package com.oasisfeng.island.shuttle
+
+import android.content.Context
+import android.net.Uri
+import android.os.Bundle
+import android.os.Process
+import android.util.Log
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.filters.LargeTest
+import androidx.test.runner.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.TimeUnit.NANOSECONDS
+
+/**
+ * Per-call latency of [ShuttleProvider]: one-shot [android.content.ContentResolver.call] (as before) against the pooled client,
+ * and pipelined calls in one transaction. Shuttled to the current user, thus only the overhead of transport is measured.
+ */
+@LargeTest @RunWith(AndroidJUnit4::class)
+class ShuttleBenchmark {
+
+	@Test fun benchmarkPerCallLatency() {
+		val context = ApplicationProvider.getApplicationContext<Context>()
+		val user = Process.myUserHandle()
+		val uri = Uri.parse("content://${user.hashCode()}@com.oasisfeng.island.shuttle")     // UserHandle.hashCode() is the user ID
+		val value = 42
+		val function: Context.() -> Int = { packageName.length + value }
+		repeat(WARM_UP) { ShuttleProvider.call(context, user, function) }
+
+		var start = System.nanoTime()
+		repeat(ROUNDS) {
+			val bundle = Bundle(1).apply { putParcelable(null, Closure(function)) }
+			assertEquals(function(context), context.contentResolver.call(uri, function.javaClass.name, null, bundle)!!.getInt(null)) }
+		val oneShot = (System.nanoTime() - start) / ROUNDS
+
+		start = System.nanoTime()
+		repeat(ROUNDS) { assertEquals(function(context), ShuttleProvider.call(context, user, function).get()) }
+		val pooled = (System.nanoTime() - start) / ROUNDS
+
+		val functions = List(BATCH_SIZE) { function }
+		start = System.nanoTime()
+		repeat(ROUNDS / BATCH_SIZE) { ShuttleProvider.callAll(context, user, functions).forEach { assertEquals(function(context), it.get()) }}
+		val pipelined = (System.nanoTime() - start) / (ROUNDS / BATCH_SIZE * BATCH_SIZE)
+
+		Log.i(TAG, "Per-call latency: one-shot ${NANOSECONDS.toMicros(oneShot)}us, pooled ${NANOSECONDS.toMicros(pooled)}us, " +
+				"pipelined (x$BATCH_SIZE) ${NANOSECONDS.toMicros(pipelined)}us")
+	}
+}
+
+private const val WARM_UP = 20
+private const val ROUNDS = 500
+private const val BATCH_SIZE = 10
+private const val TAG = "ShuttleBenchmark"
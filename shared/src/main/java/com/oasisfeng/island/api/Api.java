@@ -27,13 +27,23 @@ import static androidx.annotation.RestrictTo.Scope.LIBRARY;
  * <li>v1.1 released in Island v2.5 (250).
  * <li>v2.0 released in Island v2.9 (29000).
  * <li>v2.1 released in Island v3.5.1 (35100).
+ * <li>v2.2 adds the bound service API ({@link latest#ACTION_BIND_API}).
  * </ul>
  *
  * Created by Oasis on 2017/9/19.
  */
 public class Api {
 
-	public interface latest extends v2 {}
+	public interface latest extends v2_2 {}
+
+	interface v2_2 extends v2 {
+		/**
+		 * Bind to service with this action (and {@link #EXTRA_CALLER_ID}) for {@link IIslandApi}, to freeze, unfreeze, suspend or launch apps
+		 * in batch with less latency than intents. Caller is verified only once (at bind time) with the same permissions as intent API.
+		 * <p>Service can only be bound in the same user as the target apps. Intent API remains available for compatibility.
+		 */
+		@Since(2.2) String ACTION_BIND_API = "com.oasisfeng.island.action.BIND_API";
+	}
 
 	interface v2 extends v1 {
 		/* Runtime permissions required for certain APIs */
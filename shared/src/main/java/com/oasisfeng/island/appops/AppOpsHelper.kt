@@ -20,6 +20,10 @@ import com.oasisfeng.island.util.Hacks.AppOpsManager.PackageOps
 import com.oasisfeng.island.util.OwnerUser
 import com.oasisfeng.island.util.Permissions
 import com.oasisfeng.island.util.ProfileUser
+import java.io.File
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 /**
  * Hybrid implementation for App Ops, with local storage for ops if GET_APP_OPS_STATS is not granted.
@@ -30,7 +34,8 @@ import com.oasisfeng.island.util.ProfileUser
  *
  * Created by Oasis on 2019-3-1.
  */
-private const val PREFS_NAME = "app_ops"
+private const val PREFS_NAME = "app_ops"      // Legacy storage
+private const val STORE_FILE_NAME = "app_ops.bin"
 
 @RequiresApi(28) class AppOpsHelper(private val context: Context) {
 
@@ -53,21 +58,35 @@ private const val PREFS_NAME = "app_ops"
     fun saveAppOps(pkg: String) {
         val uid = context.packageManager.getPackageUid(pkg, PackageManager.MATCH_DISABLED_COMPONENTS)
         val pkgOps = getOpsForPackageWithPermission(uid, pkg)
-        if (pkgOps != null) saveAppOps(pkgOps) else Log.w(TAG, "No ops for $pkg (uid: $uid)")
+        if (pkgOps != null) mStore.edit().also { saveAppOps(it, pkgOps) }.apply() else Log.w(TAG, "No ops for $pkg (uid: $uid)")
     }
 
-    private fun saveAppOps(pkgOps: PackageOps) {
-        val flatPkgOps = flattenPackageOps(mAppOps, pkgOps.ops)
+    /** Save ops of packages in one transaction. Packages not found are skipped. */
+    @ProfileUser @OwnerUser @RequiresPermission(GET_APP_OPS_STATS)
+    fun saveAppOps(pkgs: Collection<String>) {
+        val transaction = mStore.edit()
+        pkgs.forEach { pkg ->
+            val uid = try { context.packageManager.getPackageUid(pkg, PackageManager.MATCH_DISABLED_COMPONENTS) }
+            catch (e: NameNotFoundException) { Log.w(TAG, "Skip saving ops for non-existent package: $pkg"); return@forEach }
+            getOpsForPackageWithPermission(uid, pkg)?.also { saveAppOps(transaction, it) } ?: Log.w(TAG, "No ops for $pkg (uid: $uid)")
+        }
+        transaction.apply()
+    }
+
+    private fun saveAppOps(transaction: AppOpsStore.Transaction, pkgOps: PackageOps) {
+        val ops = pkgOps.ops.filter { it.mode != mAppOps.opToDefaultMode(it.op) }
         val pkg = pkgOps.packageName
-        mStore.edit().apply { if (flatPkgOps.isNotEmpty()) putString(pkg, flatPkgOps) else remove(pkg) }.apply()
-        Log.d(TAG, "Ops saved for $pkg: $flatPkgOps")
+        transaction.put(pkg, ops)
+        Log.d(TAG, "Ops saved for $pkg: ${ops.joinToString { "${it.op}:${it.mode}" }}")
     }
 
-    /** Unlike [AppOpsCompat.getPackagesForOps], this only returns packages in current user, and may contain packages already uninstalled. */
+    /**
+     * Unlike [AppOpsCompat.getPackagesForOps], this only returns packages in current user, and may contain packages already uninstalled.
+     * Each [PackageOps] contains only the specified op.
+     */
     fun getPackageOps(op: Int): Map<String, PackageOps> {
-        val opsByPkg: ArrayMap<String, PackageOps> = mStore.all.mapNotNullTo(ArrayList()) {
-            PackageOpsData(it.key, -1, unflattenPackageOps(mAppOps, it.value as? String ?: return@mapNotNullTo null).toList())
-        }.associateByTo(ArrayMap()) { it.packageName }
+        val opsByPkg = mStore.getModes(op).entries.associateTo(ArrayMap<String, PackageOps>()) { (pkg, mode) ->
+            pkg to PackageOpsData(pkg, -1, listOf(OpEntryData(op, mode))) }
         if (Permissions.has(context, GET_APP_OPS_STATS))    // With permission granted, replace unfrozen packages with actual ops data.
             mAppOps.getPackagesForOps(intArrayOf(op))?.forEach { if (UserHandles.getUserId(it.uid) == UserHandles.MY_USER_ID) opsByPkg[it.packageName] = it }
         return opsByPkg
@@ -75,9 +94,7 @@ private const val PREFS_NAME = "app_ops"
 
     private fun getOpsForPackage(uid: Int, pkg: String): PackageOps? {
         if (Permissions.has(context, GET_APP_OPS_STATS)) return getOpsForPackageWithPermission(uid, pkg)
-        val flat = mStore.getString(pkg, null)
-        if (flat.isNullOrEmpty()) return null
-        return PackageOpsData(pkg, uid, unflattenPackageOps(mAppOps, flat).toList())
+        return mStore.getOps(pkg).takeIf { it.isNotEmpty() }?.let { PackageOpsData(pkg, uid, it) }
     }
 
     @RequiresPermission(GET_APP_OPS_STATS) private fun getOpsForPackageWithPermission(uid: Int, pkg: String): PackageOps? {
@@ -86,35 +103,59 @@ private const val PREFS_NAME = "app_ops"
 
     @ProfileUser @OwnerUser @Throws(NameNotFoundException::class)
     fun restoreAppOps(pkg: String): Boolean {
-        val flatPkgOps = mStore.getString(pkg, null)
-        if (flatPkgOps.isNullOrEmpty()) return false
+        val ops = mStore.getOps(pkg)
+        if (ops.isEmpty()) return false
 
         val uid = context.packageManager.getPackageUid(pkg, PackageManager.MATCH_DISABLED_COMPONENTS)
-        unflattenPackageOps(mAppOps, flatPkgOps).forEach {
+        ops.forEach {
             mAppOps.setMode(it.op, uid, pkg, it.mode)
             Log.i(TAG, "App-op restored for $pkg: ${it.op} -> mode ${it.mode}")
         }
         return true
     }
 
+    /** @return packages failed to restore (not found or error), empty if all succeeded */
+    @ProfileUser @OwnerUser fun restoreAppOps(pkgs: Collection<String>): List<String> = pkgs.filter { pkg ->
+        try { restoreAppOps(pkg); false }
+        catch (e: NameNotFoundException) { true }
+        catch (e: RuntimeException) { true.also { Log.e(TAG, "Error restoring ops for $pkg", e) }}
+    }
+
     private fun removeAppOps(pkg: String) = mStore.edit().remove(pkg).apply()
     private fun getPackageUid(pkg: String) = try { context.packageManager.getPackageUid(pkg, MATCH_UNINSTALLED_PACKAGES) } catch (e: NameNotFoundException) { 0 }
 
-    private val mStore = (if (context.isDeviceProtectedStorage) context else context.createDeviceProtectedStorageContext()).getSharedPreferences(PREFS_NAME, 0)    // No lazy, since the async loading takes time.
     private val mAppOpsManager = context.getSystemService(AppOpsManager::class.java) !!
     private val mAppOps by lazy { AppOpsCompat(mAppOpsManager) }
+    private val mStore = getStore(context, mAppOps)
 
     companion object {
 
+        private fun getStore(context: Context, appops: AppOpsCompat): AppOpsStore = sStore ?: synchronized(this) {
+            sStore ?: openStore(context, appops).also { sStore = it }}
+
+        /** Open the store in device-protected storage, and migrate from the legacy one in SharedPreferences if exists. */
+        private fun openStore(context: Context, appops: AppOpsCompat): AppOpsStore {
+            val storage = if (context.isDeviceProtectedStorage) context else context.createDeviceProtectedStorageContext()
+            val store = AppOpsStore(File(storage.filesDir, STORE_FILE_NAME), ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, LinkedBlockingQueue()) {
+                Thread(it, "AppOpsStore") }.apply { allowCoreThreadTimeOut(true) })
+            val legacy = storage.getSharedPreferences(PREFS_NAME, 0)
+            val legacyEntries = legacy.all.takeIf { it.isNotEmpty() } ?: return store
+            val existent = store.getPackages()
+            val written = store.edit().also { transaction -> legacyEntries.forEach { (pkg, flat) ->
+                if (flat is String && pkg !in existent) transaction.put(pkg, unflattenPackageOps(appops, flat).toList()) }}.commit()
+            if (! written) return store.also { Log.e(TAG, "Keep legacy storage due to failure of migration") }    // Retry next time
+            storage.deleteSharedPreferences(PREFS_NAME)     // Only after migrated data is synced to disk
+            Log.i(TAG, "Migrated ops of ${legacyEntries.size} packages from legacy storage")
+            return store
+        }
+
+        @Volatile private var sStore: AppOpsStore? = null
+
         @JvmStatic fun onOpChanged(context: Context, pkg: String, op: Int, mode: Int) {
             if (Permissions.has(context, GET_APP_OPS_STATS)) return     // No need to track the change if we have permission to query.
             AppOpsHelper(context).saveAppOp(pkg, op, mode)
         }
 
-        internal fun flattenPackageOps(appops: AppOpsCompat, ops: List<OpEntry>): String {
-            return ops.asSequence().filter { it.mode != appops.opToDefaultMode(it.op) }.map { entry -> "${entry.op}:${entry.mode}" }.joinToString(",")
-        }
-
         internal fun unflattenPackageOps(appops: AppOpsCompat, flat: String): Sequence<OpEntry> = try {
             flat.splitToSequence(",").map { it.trim().split(":") }.filter { it.size >= 2 }.map{ OpEntryData(it[0].toInt(), it[1].substring(0, 1).toInt()) }
                     .filter { it.mode != appops.opToDefaultMode(it.op) }    // In case data is flatten by older version
@@ -123,11 +164,10 @@ private const val PREFS_NAME = "app_ops"
 
     private fun saveAppOp(pkg: String, op: Int, mode: Int, uid: Int = getPackageUid(pkg)) {
         val existent = getOpsForPackage(uid, pkg)
-        Log.i(TAG, "Before ")
         val ops = if (existent != null) ArrayList(existent.ops) else ArrayList(1)
         ops.removeIf { it.op == op }    // May not be mutable OpEntryData, just replace it.
         ops.add(OpEntryData(op, mode))
-        saveAppOps(PackageOpsData(pkg, uid, ops))
+        mStore.edit().also { saveAppOps(it, PackageOpsData(pkg, uid, ops)) }.apply()
     }
 
     data class PackageOpsData(private val packageName: String, private val uid: Int, private val ops: List<OpEntry>): PackageOps {
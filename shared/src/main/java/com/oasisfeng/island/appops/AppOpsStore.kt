@@ -0,0 +1,170 @@
+package com.oasisfeng.island.appops
+
+import android.util.ArrayMap
+import android.util.ArraySet
+import android.util.Log
+import android.util.SparseArray
+import android.util.SparseIntArray
+import androidx.annotation.VisibleForTesting
+import androidx.annotation.WorkerThread
+import com.oasisfeng.island.util.Hacks.AppOpsManager.OpEntry
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.concurrent.Executor
+import java.util.concurrent.FutureTask
+import java.util.zip.CRC32
+
+/**
+ * Compact store of per-package app-ops (in non-default mode), with all records and an inverted index (op -> packages) in memory.
+ *
+ * Changes are appended to a single journal file, one check-summed block per transaction, so each write is proportional
+ * to the packages changed, and a batch of packages is saved in one transaction. A torn block at the tail is discarded
+ * upon loading. The journal is compacted once superseded records outnumber the live ones.
+ *
+ * Block: magic (int), payload length (int), payload, CRC32 of payload (int).
+ * Payload: records of package name (modified UTF-8), number of ops (short, 0 for removal), and (op (short), mode (byte)) pairs.
+ */
+internal class AppOpsStore @VisibleForTesting internal constructor(private val file: File, private val writer: Executor) {
+
+	/** @return saved ops of the package, or empty list if none */
+	fun getOps(pkg: String): List<OpEntry> = synchronized(mLock) { mOpsByPackage[pkg]?.toOpEntries() } ?: emptyList()
+
+	/** @return saved mode of the op, by packages with that op saved */
+	fun getModes(op: Int): Map<String, Int> = synchronized(mLock) {
+		val pkgs = mPackagesByOp[op] ?: return emptyMap()
+		pkgs.associateWithTo(ArrayMap(pkgs.size)) { pkg -> mOpsByPackage.getValue(pkg)[op] }
+	}
+
+	fun getPackages(): Set<String> = synchronized(mLock) { ArraySet(mOpsByPackage.keys) }
+
+	fun edit() = Transaction()
+
+	/** Changes to be committed all at once */
+	inner class Transaction {
+
+		/** Ops of the package are replaced as a whole, or removed if [ops] is empty. */
+		fun put(pkg: String, ops: List<OpEntry>): Transaction { mChanges[pkg] = ops; return this }
+		fun remove(pkg: String): Transaction { mChanges[pkg] = emptyList(); return this }
+
+		/** Apply changes to memory immediately and write them to disk asynchronously. */
+		fun apply() {
+			val records = applyInMemory() ?: return
+			writer.execute { append(records) }
+		}
+
+		/** Apply changes to memory immediately and write them to disk synchronously (after pending asynchronous writes). */
+		@WorkerThread fun commit(): Boolean {
+			val records = applyInMemory() ?: return true
+			return FutureTask { append(records) }.also { writer.execute(it) }.get()
+		}
+
+		private fun applyInMemory(): Map<String, SparseIntArray>? {
+			if (mChanges.isEmpty()) return null
+			val records = mChanges.mapValuesTo(LinkedHashMap()) { (_, ops) -> ops.toSparseIntArray() }
+			mChanges.clear()
+			synchronized(mLock) { records.forEach { (pkg, ops) -> updateInMemory(pkg, ops) }}
+			return records
+		}
+
+		private val mChanges = LinkedHashMap<String, List<OpEntry>>()
+	}
+
+	private fun updateInMemory(pkg: String, ops: SparseIntArray) {
+		mOpsByPackage.remove(pkg)?.forEachOp { op, _ -> mPackagesByOp[op]?.remove(pkg) }
+		if (ops.size() == 0) return
+		mOpsByPackage[pkg] = ops
+		ops.forEachOp { op, _ -> (mPackagesByOp[op] ?: ArraySet<String>().also { mPackagesByOp.put(op, it) }).add(pkg) }
+	}
+
+	/** @return whether the records are written (and synced) to disk */
+	@WorkerThread private fun append(records: Map<String, SparseIntArray>): Boolean {
+		try {
+			FileOutputStream(file, true).use { it.write(encodeBlock(records)); it.fd.sync() }
+		} catch (e: IOException) { Log.e(TAG, "Error writing $file", e); return false }
+		mNumJournalRecords += records.size
+		if (mNumJournalRecords > COMPACTION_MIN_RECORDS && mNumJournalRecords > synchronized(mLock) { mOpsByPackage.size } * 2)
+			try { compact() } catch (e: IOException) { Log.e(TAG, "Error compacting $file", e) }
+		return true
+	}
+
+	@WorkerThread private fun compact() {
+		val snapshot = synchronized(mLock) { ArrayMap<String, SparseIntArray>(mOpsByPackage.size).apply { putAll(mOpsByPackage) }}
+		val temp = File(file.path + ".tmp")
+		FileOutputStream(temp).use { it.write(encodeBlock(snapshot)); it.fd.sync() }
+		if (! temp.renameTo(file)) throw IOException("Failed to rename $temp to $file")
+		Log.i(TAG, "Compacted $mNumJournalRecords records to ${snapshot.size}")
+		mNumJournalRecords = snapshot.size
+	}
+
+	private fun load() {
+		val bytes = try { file.readBytes() } catch (e: IOException) { if (file.exists()) Log.e(TAG, "Error reading $file", e); return }
+		val buffer = ByteBuffer.wrap(bytes)
+		var end = 0
+		while (buffer.remaining() >= BLOCK_OVERHEAD) {
+			if (buffer.int != BLOCK_MAGIC) break
+			val length = buffer.int
+			if (length < 0 || buffer.remaining() < length + 4) break
+			val offset = buffer.position()
+			val crc = CRC32().apply { update(bytes, offset, length) }.value.toInt()
+			if (buffer.getInt(offset + length) != crc) break
+			try { decodeRecords(bytes, offset, length) { pkg, ops -> updateInMemory(pkg, ops); mNumJournalRecords ++ }}
+			catch (e: IOException) { break }
+			buffer.position(offset + length + 4)
+			end = buffer.position()
+		}
+		if (end < bytes.size) {
+			Log.w(TAG, "Discard ${bytes.size - end} bytes of invalid data at the end of $file")
+			writer.execute { try { RandomAccessFile(file, "rw").use { it.setLength(end.toLong()) }} catch (e: IOException) { Log.e(TAG, "Error truncating $file", e) }}
+		}
+	}
+
+	private val mLock = Any()
+	private val mOpsByPackage = HashMap<String, SparseIntArray>()
+	private val mPackagesByOp = SparseArray<MutableSet<String>>()
+	private var mNumJournalRecords = 0      // Only accessed in loading and writer thread
+
+	init { load() }
+
+	companion object {
+
+		@VisibleForTesting internal fun encodeBlock(records: Map<String, SparseIntArray>): ByteArray {
+			val payload = ByteArrayOutputStream(records.size * 64)
+			DataOutputStream(payload).use { out -> records.forEach { (pkg, ops) ->
+				out.writeUTF(pkg)
+				out.writeShort(ops.size())
+				ops.forEachOp { op, mode -> out.writeShort(op); out.writeByte(mode) }
+			}}
+			val bytes = payload.toByteArray()
+			val crc = CRC32().apply { update(bytes) }.value.toInt()
+			return ByteBuffer.allocate(bytes.size + BLOCK_OVERHEAD).putInt(BLOCK_MAGIC).putInt(bytes.size).put(bytes).putInt(crc).array()
+		}
+
+		@VisibleForTesting @Throws(IOException::class)
+		internal fun decodeRecords(bytes: ByteArray, offset: Int, length: Int, consumer: (String, SparseIntArray) -> Unit) {
+			val input = DataInputStream(bytes.inputStream(offset, length))
+			try {
+				while (input.available() > 0) {
+					val pkg = input.readUTF()
+					val count = input.readUnsignedShort()
+					consumer(pkg, SparseIntArray(count).apply { repeat(count) { put(input.readUnsignedShort(), input.readUnsignedByte()) }})
+				}
+			} catch (e: EOFException) { throw IOException("Truncated record", e) }
+		}
+
+		private fun List<OpEntry>.toSparseIntArray() = SparseIntArray(size).also { array -> forEach { array.put(it.op, it.mode) }}
+		private fun SparseIntArray.toOpEntries() = List(size()) { AppOpsHelper.OpEntryData(keyAt(it), valueAt(it)) }
+		private inline fun SparseIntArray.forEachOp(action: (op: Int, mode: Int) -> Unit) { for (i in 0 until size()) action(keyAt(i), valueAt(i)) }
+	}
+}
+
+private const val BLOCK_MAGIC = 0x4F505331     // "OPS1"
+private const val BLOCK_OVERHEAD = 12
+private const val COMPACTION_MIN_RECORDS = 64
+private const val TAG = "Island.AOS"
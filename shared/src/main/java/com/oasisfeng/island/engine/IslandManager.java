@@ -22,7 +22,9 @@ import com.oasisfeng.island.util.OwnerUser;
 import com.oasisfeng.island.util.ProfileUser;
 import com.oasisfeng.island.util.Users;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
@@ -50,7 +52,29 @@ public class IslandManager {
 	}
 
 	@OwnerUser @ProfileUser public static boolean ensureAppHiddenState(final Context context, final String pkg, final boolean state) {
+		return ensureAppHiddenState(new DevicePolicies(context), pkg, state);
+	}
+
+	/** Batch version of {@link #ensureAppHiddenState(Context, String, boolean)}, for packages in the current user.
+	 *  @return whether each package is in the requested state, in the same order as packages. */
+	@OwnerUser @ProfileUser public static boolean[] ensureAppsHiddenState(final Context context, final String[] pkgs, final boolean[] states) {
+		if (pkgs.length != states.length) throw new IllegalArgumentException("Mismatched length of packages and states");
 		final DevicePolicies policies = new DevicePolicies(context);
+		final boolean[] results = new boolean[pkgs.length];
+		for (final boolean state : new boolean[] { true, false }) {		// Grouped by state, to save or restore app-ops in batch.
+			final List<Integer> indices = new ArrayList<>();
+			for (int i = 0; i < pkgs.length; i ++) if (states[i] == state) indices.add(i);
+			if (indices.isEmpty()) continue;
+			final boolean[] changed = policies.setApplicationsHidden(indices.stream().map(i -> pkgs[i]).collect(Collectors.toList()), state);
+			for (int j = 0; j < changed.length; j ++) {
+				final int i = indices.get(j);	// Since setApplicationHidden() return false if already in that state, also check the current state.
+				results[i] = changed[j] || policies.invoke(DevicePolicyManager::isApplicationHidden, pkgs[i]) == state;
+			}
+		}
+		return results;
+	}
+
+	private static boolean ensureAppHiddenState(final DevicePolicies policies, final String pkg, final boolean state) {
 		if (policies.setApplicationHidden(pkg, state)) return true;
 		// Since setApplicationHidden() return false if already in that state, also check the current state.
 		final boolean hidden = policies.invoke(DevicePolicyManager::isApplicationHidden, pkg);
@@ -3,12 +3,15 @@ package com.oasisfeng.island.provisioning;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ChangedPackages;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ResolveInfo;
 import android.content.pm.Signature;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.BlockedNumberContract;
 import android.provider.CalendarContract;
 import android.provider.CallLog;
@@ -20,6 +23,9 @@ import android.provider.Telephony.Carriers;
 import android.provider.UserDictionary;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
 import com.oasisfeng.island.analytics.Analytics;
 import com.oasisfeng.island.engine.common.WellKnownPackages;
 import com.oasisfeng.island.util.Hacks;
@@ -28,14 +34,21 @@ import com.oasisfeng.island.util.ProfileUser;
 import com.oasisfeng.perf.Performances;
 import com.oasisfeng.perf.Stopwatch;
 
+import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static android.content.pm.ApplicationInfo.FLAG_SYSTEM;
 import static android.content.pm.PackageManager.MATCH_DEFAULT_ONLY;
+import static android.content.pm.PackageManager.MATCH_UNINSTALLED_PACKAGES;
 import static android.content.pm.ProviderInfo.FLAG_SINGLE_USER;
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.O;
 
 /**
  * Manage the critical system apps in Island
@@ -123,6 +136,72 @@ import static android.content.pm.ProviderInfo.FLAG_SINGLE_USER;
 		} catch (final PackageManager.NameNotFoundException ignored) { return null; }
 	}
 
+	/**
+	 * Cached version of {@link #detectCriticalSystemPackages(PackageManager)}, persisted with the build fingerprint.
+	 * Since Android O, the cache is trusted within the same boot unless system packages or cached ones are changed since last time,
+	 * according to the sequence number of {@link PackageManager#getChangedPackages(int)}, which is reset upon reboot.
+	 * Otherwise it is verified by a full detection in background (thus covering new candidates of critical intents and authorities),
+	 * if changed, it is refreshed and the content of returned (read-only) set is swapped atomically.
+	 */
+	@OwnerUser @ProfileUser public static Set<String> detectCriticalSystemPackages(final Context context) {
+		final Stopwatch stopwatch = Performances.startUptimeStopwatch();
+		final PackageManager pm = context.getPackageManager();
+		final SharedPreferences cache = (context.isDeviceProtectedStorage() ? context : context.createDeviceProtectedStorageContext())
+				.getSharedPreferences(CACHE_PREFS_NAME, Context.MODE_PRIVATE);
+		final int boot_count = Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+		final boolean same_boot = boot_count >= 0 && boot_count == cache.getInt(CACHE_KEY_BOOT_COUNT, -1);
+		final int last_sequence = same_boot ? cache.getInt(CACHE_KEY_SEQUENCE, 0) : 0;
+		final ChangedPackages changes = SDK_INT >= O ? pm.getChangedPackages(last_sequence) : null;	// Null if nothing changed
+		final int sequence = changes != null ? changes.getSequenceNumber() : last_sequence;
+
+		final Set<String> cached_pkgs = Build.FINGERPRINT.equals(cache.getString(CACHE_KEY_FINGERPRINT, null))
+				? cache.getStringSet(CACHE_KEY_PACKAGES, null) : null;
+		if (cached_pkgs == null) {
+			final Set<String> pkgs = detectCriticalSystemPackages(pm);
+			saveToCache(cache, pkgs, boot_count, sequence);
+			return Collections.unmodifiableSet(pkgs);
+		}
+		if (SDK_INT >= O && same_boot && ! hasRelevantChanges(pm, changes, cached_pkgs)) {
+			if (sequence != last_sequence) cache.edit().putInt(CACHE_KEY_SEQUENCE, sequence).apply();
+			Performances.check(stopwatch, 1, "CriticalPackagesCache");
+			return Collections.unmodifiableSet(cached_pkgs);
+		}
+
+		final AtomicReference<Set<String>> current = new AtomicReference<>(new HashSet<>(cached_pkgs));
+		Performances.check(stopwatch, 1, "CriticalPackagesCache");
+		final Thread thread = new Thread(() -> {
+			final Set<String> detected = detectCriticalSystemPackages(pm);
+			saveToCache(cache, detected, boot_count, sequence);
+			if (detected.equals(cached_pkgs)) return;
+			Log.i(TAG, "Refresh critical system packages due to package changes");
+			current.set(detected);
+		}, "SysApps.Verify");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		return new AbstractSet<String>() {		// Each call works on a consistent set, never a partially updated one.
+			@Override public boolean contains(final Object o) { return current.get().contains(o); }
+			@Override public Iterator<String> iterator() { return Collections.unmodifiableSet(current.get()).iterator(); }
+			@Override public int size() { return current.get().size(); }
+		};
+	}
+
+	/** Only system packages could be detected as critical, besides those already cached (which may be uninstalled). */
+	@RequiresApi(O) private static boolean hasRelevantChanges(final PackageManager pm, final @Nullable ChangedPackages changes, final Set<String> cached_pkgs) {
+		if (changes == null) return false;
+		for (final String pkg : changes.getPackageNames()) {
+			if (cached_pkgs.contains(pkg)) return true;
+			try {
+				if ((pm.getApplicationInfo(pkg, MATCH_UNINSTALLED_PACKAGES).flags & FLAG_SYSTEM) != 0) return true;
+			} catch (final PackageManager.NameNotFoundException ignored) {}		// Uninstalled non-critical package
+		}
+		return false;
+	}
+
+	private static void saveToCache(final SharedPreferences cache, final Set<String> pkgs, final int boot_count, final int sequence) {
+		cache.edit().putString(CACHE_KEY_FINGERPRINT, Build.FINGERPRINT).putStringSet(CACHE_KEY_PACKAGES, new HashSet<>(pkgs))
+				.putInt(CACHE_KEY_BOOT_COUNT, boot_count).putInt(CACHE_KEY_SEQUENCE, sequence).apply();
+	}
+
 	@OwnerUser @ProfileUser public static Set<String> detectCriticalSystemPackages(final PackageManager pm) {
 		final Stopwatch stopwatch = Performances.startUptimeStopwatch();
 
@@ -158,5 +237,11 @@ import static android.content.pm.ProviderInfo.FLAG_SINGLE_USER;
 	}
 
 	private final Context mContext;
+
+	private static final String CACHE_PREFS_NAME = "critical_system_packages";
+	private static final String CACHE_KEY_FINGERPRINT = "fingerprint";
+	private static final String CACHE_KEY_PACKAGES = "packages";
+	private static final String CACHE_KEY_BOOT_COUNT = "boot_count";
+	private static final String CACHE_KEY_SEQUENCE = "sequence";		// Sequence number of changed packages, only valid within the same boot
 	private static final String TAG = "Island.SysApps";
 }
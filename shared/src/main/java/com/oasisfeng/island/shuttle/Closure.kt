@@ -3,18 +3,20 @@ package com.oasisfeng.island.shuttle
 import android.content.Context
 import android.os.Parcel
 import android.os.Parcelable
+import java.lang.reflect.Constructor
+import java.lang.reflect.Field
 import java.lang.reflect.Modifier
+import java.util.concurrent.ConcurrentHashMap
 
 private typealias CtxFun<R> = Context.() -> R
 
 internal class Closure(private val functionClass: Class<CtxFun<*>>, private val variables: Array<Any?>): Parcelable {
 
 	fun invoke(context: Context): Any? {
-		val constructor = functionClass.declaredConstructors[0].apply { isAccessible = true }
-		val args: Array<Any?> = constructor.parameterTypes.map(::getDefaultValue).toTypedArray()
+		val metadata = metadataOf(functionClass)
 		val variables = variables
-		@Suppress("UNCHECKED_CAST") val block = constructor.newInstance(* args) as CtxFun<*>
-		block.javaClass.getMemberFields().forEachIndexed { index, field ->  // Constructor arguments do not matter, as all fields are replaced.
+		@Suppress("UNCHECKED_CAST") val block = metadata.constructor.newInstance(* metadata.defaultArgs) as CtxFun<*>
+		metadata.fields.forEachIndexed { index, field ->    // Constructor arguments do not matter, as all fields are replaced.
 			field.set(block, when (field.type) {
 				Context::class.java -> context
 				Closure::class.java -> (variables[index] as? Closure)?.invoke(context)
@@ -27,9 +29,6 @@ internal class Closure(private val functionClass: Class<CtxFun<*>>, private val
 		require(constructors.isNotEmpty()) { "The method must have at least one constructor" }
 	}
 
-	private fun getDefaultValue(type: Class<*>)
-			= if (type.isPrimitive) java.lang.reflect.Array.get(java.lang.reflect.Array.newInstance(type, 1), 0) else null
-
 	override fun toString() = "Closure{${functionClass.name}}"
 
 	override fun describeContents() = 0
@@ -46,11 +45,22 @@ internal class Closure(private val functionClass: Class<CtxFun<*>>, private val
 
 		// Automatically generated fields for captured variables, by compiler (indeterminate order)
 		private fun extractVariablesFromFields(procedure: CtxFun<*>)
-				= procedure.javaClass.getMemberFields().map { wrapIfNeeded(it.get(procedure)) }.toTypedArray()
+				= metadataOf(procedure.javaClass).fields.map { wrapIfNeeded(it.get(procedure)) }.toTypedArray()
 
-		private fun <T> Class<T>.getMemberFields()
-				= declaredFields.filter { if (Modifier.isStatic(it.modifiers)) false else { it.isAccessible = true; true }}
+		/** Reflective metadata is looked up only once for each closure class, as the same closures are typically shuttled repeatedly. */
+		private fun metadataOf(functionClass: Class<*>) = sMetadataCache.getOrPut(functionClass) { Metadata(functionClass) }
+		private val sMetadataCache = ConcurrentHashMap<Class<*>, Metadata>()
 
 		private fun wrapIfNeeded(obj: Any?): Any? = if (obj is Context) null else obj
 	}
 }
+
+private class Metadata(functionClass: Class<*>) {
+
+	val constructor: Constructor<*> = functionClass.declaredConstructors[0].apply { isAccessible = true }
+	val defaultArgs: Array<Any?> = constructor.parameterTypes.map(::getDefaultValue).toTypedArray()
+	val fields: List<Field> = functionClass.declaredFields.filter { if (Modifier.isStatic(it.modifiers)) false else { it.isAccessible = true; true }}
+
+	private fun getDefaultValue(type: Class<*>)
+			= if (type.isPrimitive) java.lang.reflect.Array.get(java.lang.reflect.Array.newInstance(type, 1), 0) else null
+}
@@ -82,6 +82,11 @@ public class MethodShuttle {
 		final MethodInvocation<Result> invocation = new MethodInvocation<>();
 		invocation.clazz = clazz.getName();
 		invocation.args = args;
+		// Dispatched on the IPC executor, to never block the caller (typically main thread or binder thread).
+		return ShuttleExecutor.submit(invocation.clazz, 0, () -> dispatch(context, invocation)).thenCompose(future -> future);
+	}
+
+	private static <Result> CompletableFuture<Result> dispatch(final Context context, final MethodInvocation<Result> invocation) {
 		final CompletableFuture<Result> future = new CompletableFuture<>();
 		final Services.ServiceReadyThrows<IMethodShuttle, DeadObjectException> procedure = shuttle -> {
 			sCachedShuttle = shuttle;
@@ -3,6 +3,8 @@ package com.oasisfeng.island.shuttle
 import android.content.Context
 import android.os.UserHandle
 import com.oasisfeng.island.util.Users
+import kotlinx.coroutines.future.await
+import java.util.concurrent.CompletableFuture
 
 class Shuttle(val context: Context, val to: UserHandle) {
 
@@ -17,6 +19,30 @@ class Shuttle(val context: Context, val to: UserHandle) {
 	inline fun <A, R> invoke(with: A, crossinline function: Context.(A) -> R)
 			= invoke { this.function(with) }
 
+	/**
+	 * Asynchronous version of [invoke], running on the dedicated IPC executor without blocking the caller.
+	 * The future fails with [IllegalStateException] if shuttle is not ready, or [java.util.concurrent.TimeoutException] if deadline exceeded.
+	 *
+	 * @param timeout deadline in milliseconds, or 0 for none
+	 */
+	@JvmOverloads fun <R> invokeAsync(timeout: Long = 0, function: Context.() -> R): CompletableFuture<R>
+			= ShuttleExecutor.submit(function.javaClass.name, timeout) { invoke(function) }
+
+	inline fun <A, R> invokeAsync(with: A, timeout: Long, crossinline function: Context.(A) -> R)
+			= invokeAsync(timeout) { this.function(with) }
+
+	/** Suspending version of [invoke], the call is abandoned if the coroutine is cancelled. */
+	suspend fun <R> invokeSuspending(timeout: Long = 0, function: Context.() -> R): R = invokeAsync(timeout, function).await()
+
+	suspend inline fun <A, R> invokeSuspending(with: A, timeout: Long, crossinline function: Context.(A) -> R)
+			= invokeSuspending(timeout) { this.function(with) }
+
+	/** Invoke functions in order, with only one cross-profile transaction. */
+	fun invokeAll(functions: List<Context.() -> Any?>): List<Any?>
+			= if (to == Users.current()) functions.map { context.it() } else ShuttleProvider.callAll(context, to, functions).map {
+				if (it.isNotReady()) throw IllegalStateException("Shuttle not ready")
+				it.get() }
+
 	private fun <R> shuttle(function: Context.() -> R): R {
 		val result = ShuttleProvider.call(context, to, function)
 		if (result.isNotReady()) throw IllegalStateException("Shuttle not ready")
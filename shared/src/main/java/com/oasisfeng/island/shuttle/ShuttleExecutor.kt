@@ -0,0 +1,53 @@
+package com.oasisfeng.island.shuttle
+
+import android.os.SystemClock
+import android.util.Log
+import java.util.concurrent.*
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Dedicated executor for cross-profile calls, with deadline, cancellation and latency statistics per closure class.
+ *
+ * Cancellation or deadline only abandons the call if already started, since an ongoing binder transaction cannot be interrupted.
+ */
+object ShuttleExecutor {
+
+	/** @param timeout deadline in milliseconds since submission, or 0 for none. The returned future fails with [TimeoutException] if exceeded. */
+	@JvmStatic fun <R> submit(name: String, timeout: Long, task: Callable<R>): CompletableFuture<R> {
+		val future = CompletableFuture<R>()
+		val submitTime = SystemClock.uptimeMillis()
+		mExecutor.execute {
+			if (future.isDone) return@execute      // Cancelled or timed out before started
+			try { future.complete(task.call()) }
+			catch (t: Throwable) { future.completeExceptionally(t) }
+			finally { record(name, SystemClock.uptimeMillis() - submitTime) }}
+		if (timeout > 0) {
+			val timer = mTimer.schedule({ future.completeExceptionally(TimeoutException("$name timed out after ${timeout}ms")) }, timeout, MILLISECONDS)
+			future.whenComplete { _, _ -> timer.cancel(false) }}
+		return future
+	}
+
+	/** @return latency statistics (including time waited in queue) per closure class, in "count / average / max (ms)" */
+	@JvmStatic fun getLatencyStats(): Map<String, String> = mLatencies.mapValues { (_, latency) ->
+		val count = latency.count.get()
+		"$count / ${if (count == 0L) 0 else latency.total.get() / count} / ${latency.max.get()}" }
+
+	private fun record(name: String, millis: Long) {
+		val latency = mLatencies.getOrPut(name) { Latency() }
+		latency.count.incrementAndGet(); latency.total.addAndGet(millis)
+		latency.max.accumulateAndGet(millis, Math::max)
+		if (millis > SLOW_CALL_THRESHOLD) Log.w(TAG, "$millis ms spent in shuttle call: $name")
+	}
+
+	private class Latency { val count = AtomicLong(); val total = AtomicLong(); val max = AtomicLong() }
+
+	private val mExecutor = ThreadPoolExecutor(MAX_CONCURRENT_CALLS, MAX_CONCURRENT_CALLS, 10, TimeUnit.SECONDS, LinkedBlockingQueue()) {
+		Thread(it, "Shuttle.IPC") }.apply { allowCoreThreadTimeOut(true) }
+	private val mTimer = ScheduledThreadPoolExecutor(1) { Thread(it, "Shuttle.Timer") }.apply { removeOnCancelPolicy = true }
+	private val mLatencies = ConcurrentHashMap<String, Latency>()
+}
+
+private const val MAX_CONCURRENT_CALLS = 4
+private const val SLOW_CALL_THRESHOLD = 500L
+private const val TAG = "Island.SE"
@@ -18,6 +18,7 @@ import com.oasisfeng.island.util.Users
 import com.oasisfeng.island.util.toId
 import java.io.Serializable
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 class ShuttleProvider: ContentProvider() {
 
@@ -25,12 +26,60 @@ class ShuttleProvider: ContentProvider() {
 
 		fun <R> call(context: Context, profile: UserHandle, function: ContextFun<R>): ShuttleResult<R> {
 			val bundle = Bundle(1).apply { putParcelable(null, Closure(function)) }
-			val uri = buildCrossProfileUri(profile.toId())
-			return try { ShuttleResult(context.contentResolver.call(uri, function.javaClass.name, null, bundle)) }
+			return try { ShuttleResult(transact(context, profile, function.javaClass.name, bundle)) }
 			catch (e: SecurityException) { @Suppress("UNCHECKED_CAST")
 				if (isReady(context, profile)) throw e else ShuttleResult.NOT_READY as ShuttleResult<R> }
 		}
 
+		/** Call functions in one transaction, which are invoked in order in the profile. Either all or none of the results is NOT_READY. */
+		fun callAll(context: Context, profile: UserHandle, functions: List<ContextFun<*>>): List<ShuttleResult<Any?>> {
+			val bundle = Bundle(1).apply { putParcelableArray(null, functions.map { Closure(it) }.toTypedArray()) }
+			val result = try { transact(context, profile, METHOD_BATCH, bundle) }
+			catch (e: SecurityException) { @Suppress("UNCHECKED_CAST")
+				if (isReady(context, profile)) throw e else return functions.map { ShuttleResult.NOT_READY as ShuttleResult<Any?> }}
+			return functions.indices.map { ShuttleResult<Any?>(result?.getBundle(it.toString())) }
+		}
+
+		/** Transact via the pooled client of provider in profile, acquired upon first call and reacquired if the remote process died. */
+		private fun transact(context: Context, profile: UserHandle, method: String, extras: Bundle): Bundle? {
+			val profileId = profile.toId()
+			for (attempt in 1..2) {
+				val client = sClients[profileId] ?: acquireClient(context, profileId)
+				try { return client.call(method, null, extras) }
+				catch (e: DeadObjectException) { Log.i(TAG, "Provider in profile $profileId died, reconnecting...") }
+				catch (e: SecurityException) { releaseClient(profileId, client); throw e }
+				releaseClient(profileId, client)
+			}
+			throw IllegalStateException("Provider in profile $profileId keeps dying")
+		}
+
+		private fun acquireClient(context: Context, profileId: Int): ContentProviderClient {
+			if (! sProfileRemovalMonitored) synchronized(sClients) {
+				if (! sProfileRemovalMonitored) monitorProfileRemoval(context.applicationContext).also { sProfileRemovalMonitored = true }}
+			val client = context.applicationContext.contentResolver.acquireUnstableContentProviderClient(buildCrossProfileUri(profileId))
+					?: throw IllegalStateException("Provider not found in profile $profileId")
+			val existent = sClients.putIfAbsent(profileId, client) ?: return client
+			client.close()      // Acquired concurrently by another thread
+			return existent
+		}
+
+		private fun releaseClient(profileId: Int, client: ContentProviderClient) {
+			if (sClients.remove(profileId, client)) client.close()
+		}
+
+		/** Pooled client to a removed profile is never used again, release it. (Only delivered in owner user, where profiles are managed) */
+		private fun monitorProfileRemoval(context: Context) = context.registerReceiver(object : BroadcastReceiver() {
+			override fun onReceive(context: Context, intent: Intent) {
+				val profileId = intent.getParcelableExtra<UserHandle>(Intent.EXTRA_USER)?.toId() ?: return
+				val client = sClients.remove(profileId) ?: return
+				client.close()
+				Log.i(TAG, "Released client to removed profile $profileId")
+			}
+		}, IntentFilter(Intent.ACTION_MANAGED_PROFILE_REMOVED))
+
+		private val sClients = ConcurrentHashMap<Int/* profile ID */, ContentProviderClient>()
+		@Volatile private var sProfileRemovalMonitored = false
+
 		fun isReady(c: Context, profile: UserHandle) = c.isUriPermissionGranted(buildCrossProfileUri(profile.toId()))
 
 		private fun Context.isUriPermissionGranted(uri: Uri, uid: Int = Process.myUid()) =
@@ -46,11 +95,21 @@ class ShuttleProvider: ContentProvider() {
 				Uri.Builder().scheme(SCHEME_CONTENT).encodedAuthority("$profileId@$AUTHORITY").build()
 
 		private const val AUTHORITY = "com.oasisfeng.island.shuttle"
+		private const val METHOD_BATCH = "batch"
 		const val CONTENT_URI = "content://$AUTHORITY"
 	}
 
 	override fun call(method: String, arg: String?, extras: Bundle?): Bundle? {
-		val closure = requireNotNull(extras?.apply { classLoader = Closure::class.java.classLoader }?.getParcelable<Closure>(null)) { "Missing extra" }
+		extras?.classLoader = Closure::class.java.classLoader
+		if (method == METHOD_BATCH) {
+			val closures = requireNotNull(extras?.getParcelableArray(null)) { "Missing extra" }
+			return Bundle(closures.size).apply { closures.forEachIndexed { index, closure ->
+				invoke(closure as Closure, "$method[$index]")?.also { putBundle(index.toString(), it) }}}
+		}
+		return invoke(requireNotNull(extras?.getParcelable(null)) { "Missing extra" }, method)
+	}
+
+	private fun invoke(closure: Closure, method: String): Bundle? {
 		val result = closure.invoke(context).also { Log.i(TAG, "Call: $method()=$it") }
 		return if (result == null || result == Unit) null else Bundle().apply { put(null, result) }
 	}
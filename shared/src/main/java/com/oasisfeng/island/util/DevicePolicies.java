@@ -13,6 +13,7 @@ import android.os.Bundle;
 import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -25,10 +26,13 @@ import com.oasisfeng.island.analytics.Analytics;
 import com.oasisfeng.island.appops.AppOpsHelper;
 import com.oasisfeng.island.shared.R;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.N_MR1;
@@ -139,7 +143,13 @@ public class DevicePolicies {
 
 	/** @see DevicePolicyManager#addCrossProfileIntentFilter(ComponentName, IntentFilter, int) */
 	public void addCrossProfileIntentFilter(final IntentFilter filter, final int flags) {	// Need this helper since IntentFilters may throws.
-		mDevicePolicyManager.addCrossProfileIntentFilter(sCachedComponent, filter, flags);
+		execute(DevicePolicyManager::addCrossProfileIntentFilter, filter, flags);
+	}
+
+	/** Clear all cross-profile intent filters added by us, and the persisted hash of the last applied set, to get it re-applied later. */
+	public void clearCrossProfileIntentFilters() {
+		PreferenceManager.getDefaultSharedPreferences(mAppContext).edit().remove(PREF_KEY_CROSS_PROFILE_INTENT_FILTERS_HASH).commit();
+		execute(DevicePolicyManager::clearCrossProfileIntentFilters);
 	}
 
 	public DevicePolicyManager getManager() { return mDevicePolicyManager; }
@@ -166,6 +176,35 @@ public class DevicePolicies {
 		return changed;
 	}
 
+	/** Batch version of {@link #setApplicationHidden(String, boolean)}, with app-ops of all packages saved or restored at once.
+	 *  @return whether each package is changed, in the same order as packages. */
+	public boolean[] setApplicationsHidden(final List<String> pkgs, final boolean hidden) {
+		if (SDK_INT >= P && hidden && Permissions.has(mAppContext, GET_APP_OPS_STATS)) try {
+			new AppOpsHelper(mAppContext).saveAppOps(pkgs);
+		} catch (final RuntimeException e) {
+			Toasts.showLong(mAppContext, R.string.prompt_failed_preserving_app_ops);
+			Analytics.$().logAndReport(TAG, "Error saving app ops settings for " + pkgs, e);
+		}
+		final boolean[] changed = new boolean[pkgs.size()];
+		final List<String> unfrozen = new ArrayList<>();
+		for (int i = 0; i < changed.length; i ++) {
+			final String pkg = pkgs.get(i);
+			if ((changed[i] = setApplicationHiddenWithoutAppOpsSaver(pkg, hidden)) && ! hidden) unfrozen.add(pkg);
+		}
+
+		if (SDK_INT >= P && ! hidden && ! unfrozen.isEmpty()) try {
+			final List<String> failed = new AppOpsHelper(mAppContext).restoreAppOps(unfrozen);
+			if (! failed.isEmpty()) {
+				Toasts.showLong(mAppContext, R.string.prompt_failed_preserving_app_ops);
+				Log.w(TAG, "Failed to restore app ops settings for " + failed);
+			}
+		} catch (final RuntimeException e) {
+			Toasts.showLong(mAppContext, R.string.prompt_failed_preserving_app_ops);
+			Analytics.$().logAndReport(TAG, "Error restoring app ops settings for " + unfrozen, e);
+		}
+		return changed;
+	}
+
 	public boolean setApplicationHiddenWithoutAppOpsSaver(final String pkg, final boolean hidden) {
 		final boolean changed = mDevicePolicyManager.setApplicationHidden(sCachedComponent, pkg, hidden);
 		if (changed && ! hidden) Modules.broadcast(mAppContext, new Intent(ACTION_PACKAGE_UNFROZEN, Uri.fromParts("package", pkg, null)));
@@ -208,30 +247,51 @@ public class DevicePolicies {
 	public interface QuinFunction<A, B, C, D, E, R> { R apply(A a, B b, C c, D d, E e); }
 
 	public void execute(final BiConsumer<DevicePolicyManager, ComponentName> callee) {
-		callee.accept(mDevicePolicyManager, sCachedComponent);
+		if (sCallInterceptor == null) callee.accept(mDevicePolicyManager, sCachedComponent);
+		else intercept(() -> { callee.accept(mDevicePolicyManager, sCachedComponent); return null; });
 	}
 	public <A> void execute(final TriConsumer<DevicePolicyManager, ComponentName, A> callee, final A a) {
-		callee.accept(mDevicePolicyManager, sCachedComponent, a);
+		if (sCallInterceptor == null) callee.accept(mDevicePolicyManager, sCachedComponent, a);
+		else intercept(() -> { callee.accept(mDevicePolicyManager, sCachedComponent, a); return null; });
 	}
 	public <A, B> void execute(final QuadConsumer<DevicePolicyManager, ComponentName, A, B> callee, final A a, final B b) {
-		callee.accept(mDevicePolicyManager, sCachedComponent, a, b);
+		if (sCallInterceptor == null) callee.accept(mDevicePolicyManager, sCachedComponent, a, b);
+		else intercept(() -> { callee.accept(mDevicePolicyManager, sCachedComponent, a, b); return null; });
 	}
 	public <T> T invoke(final BiFunction<DevicePolicyManager, ComponentName, T> callee) {
-		return callee.apply(mDevicePolicyManager, sCachedComponent);
+		if (sCallInterceptor == null) return callee.apply(mDevicePolicyManager, sCachedComponent);
+		return intercept(() -> callee.apply(mDevicePolicyManager, sCachedComponent));
 	}
 	public <A, T> T invoke(final TriFunction<DevicePolicyManager, ComponentName, A, T> callee, final A a) {
-		return callee.apply(mDevicePolicyManager, sCachedComponent, a);
+		if (sCallInterceptor == null) return callee.apply(mDevicePolicyManager, sCachedComponent, a);
+		return intercept(() -> callee.apply(mDevicePolicyManager, sCachedComponent, a));
 	}
 	public <A, B, T> T invoke(final QuadFunction<DevicePolicyManager, ComponentName, A, B, T> callee, final A a, final B b) {
-		return callee.apply(mDevicePolicyManager, sCachedComponent, a, b);
+		if (sCallInterceptor == null) return callee.apply(mDevicePolicyManager, sCachedComponent, a, b);
+		return intercept(() -> callee.apply(mDevicePolicyManager, sCachedComponent, a, b));
 	}
 	public <A, B, C, T> T invoke(final QuinFunction<DevicePolicyManager, ComponentName, A, B, C, T> callee, final A a, final B b, final C c) {
-		return callee.apply(mDevicePolicyManager, sCachedComponent, a, b, c);
+		if (sCallInterceptor == null) return callee.apply(mDevicePolicyManager, sCachedComponent, a, b, c);
+		return intercept(() -> callee.apply(mDevicePolicyManager, sCachedComponent, a, b, c));
+	}
+
+	/** Interceptor of calls to {@link DevicePolicyManager} via {@link #execute} and {@link #invoke} (e.g. for tracing), from any thread. */
+	public interface CallInterceptor { <T> T intercept(Supplier<T> call); }
+
+	public static void setCallInterceptor(final @Nullable CallInterceptor interceptor) { sCallInterceptor = interceptor; }
+
+	private static <T> T intercept(final Supplier<T> call) {
+		final CallInterceptor interceptor = sCallInterceptor;
+		return interceptor != null ? interceptor.intercept(call) : call.get();
 	}
 
 	private final Context mAppContext;
 	private final DevicePolicyManager mDevicePolicyManager;
 
+	/** Hash of the cross-profile intent filters last applied, in default shared preferences */
+	public static final String PREF_KEY_CROSS_PROFILE_INTENT_FILTERS_HASH = "cross_profile_intent_filters.hash";
+
 	private static ComponentName sCachedComponent;
+	private static volatile @Nullable CallInterceptor sCallInterceptor;
 	private static final String TAG = DevicePolicies.class.getSimpleName();
 }
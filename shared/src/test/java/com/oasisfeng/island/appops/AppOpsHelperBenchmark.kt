@@ -0,0 +1,58 @@
+package com.oasisfeng.island.appops
+
+import android.app.AppOpsManager.MODE_ALLOWED
+import android.app.AppOpsManager.MODE_IGNORED
+import android.content.Context
+import android.util.SparseIntArray
+import androidx.test.core.app.ApplicationProvider
+import com.oasisfeng.benchmark.Benchmark
+import com.oasisfeng.benchmark.Benchmark.params
+import org.junit.AfterClass
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import java.util.concurrent.Executor
+
+@RunWith(RobolectricTestRunner::class) @Config(sdk = [28])
+class AppOpsHelperBenchmark {
+
+	private val appops = AppOpsCompat(ApplicationProvider.getApplicationContext<Context>())
+
+	@Test fun encodeRecords() = NUM_PACKAGES.forEach { count ->
+		val records = buildRecords(count)
+		sBenchmark.measure("encodeRecords", params("packages", count.toString())) { AppOpsStore.encodeBlock(records) }
+	}
+
+	@Test fun decodeRecords() = NUM_PACKAGES.forEach { count ->
+		val block = AppOpsStore.encodeBlock(buildRecords(count))
+		sBenchmark.measure("decodeRecords", params("packages", count.toString())) {
+			var numOps = 0; AppOpsStore.decodeRecords(block, 8, block.size - 12) { _, ops -> numOps += ops.size() }; numOps }
+	}
+
+	@Test fun getModes() = NUM_PACKAGES.forEach { count ->
+		val store = AppOpsStore(File.createTempFile("app_ops", ".bin").apply { deleteOnExit() }, Executor { it.run() })
+		store.edit().also { transaction -> (0 until count).forEach { transaction.put("com.example.app$it", buildOps(NUM_OPS)) }}.apply()
+		sBenchmark.measure("getModes", params("packages", count.toString())) { store.getModes(NUM_OPS / 2) }
+	}
+
+	@Test fun unflattenLegacyPackageOps() {
+		val flat = buildOps(NUM_OPS).joinToString(",") { "${it.op}:${it.mode}" }
+		sBenchmark.measure("unflattenLegacyPackageOps", params("ops", NUM_OPS.toString())) { AppOpsHelper.unflattenPackageOps(appops, flat).toList() }
+	}
+
+	private fun buildRecords(count: Int) = (0 until count).associateTo(LinkedHashMap()) { i ->
+		"com.example.app$i" to SparseIntArray().apply { buildOps(NUM_OPS).forEach { put(it.op, it.mode) }}}
+
+	/** Ops with non-default modes (ops in default mode are not stored) */
+	private fun buildOps(count: Int) = (0 until count).map { op ->
+		AppOpsHelper.OpEntryData(op, if (appops.opToDefaultMode(op) == MODE_ALLOWED) MODE_IGNORED else MODE_ALLOWED) }
+
+	companion object {
+		private const val NUM_OPS = 8
+		private val NUM_PACKAGES = listOf(10, 500)
+		private val sBenchmark = Benchmark("AppOpsHelperBenchmark")
+		@AfterClass @JvmStatic fun report() { sBenchmark.report() }
+	}
+}
@@ -0,0 +1,44 @@
+package com.oasisfeng.island.shuttle
+
+import android.content.Context
+import android.os.Parcel
+import androidx.test.core.app.ApplicationProvider
+import com.oasisfeng.benchmark.Benchmark
+import org.junit.AfterClass
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class) @Config(sdk = [28])
+class ClosureBenchmark {
+
+	private val context = ApplicationProvider.getApplicationContext<Context>()
+
+	@Test fun parcel() {
+		val function = buildFunction()
+		sBenchmark.measure("parcel") {
+			val parcel = Parcel.obtain()
+			try {
+				parcel.writeParcelable(Closure(function), 0)
+				parcel.setDataPosition(0)
+				parcel.readParcelable<Closure>(Closure::class.java.classLoader)
+			} finally { parcel.recycle() }}
+	}
+
+	@Test fun invoke() {
+		val closure = Closure(buildFunction())
+		sBenchmark.measure("invoke") { closure.invoke(context) }
+	}
+
+	companion object {
+		/** Captures only local values (parcelable), not the enclosing test instance. */
+		private fun buildFunction(): Context.() -> Int {
+			val pkg = "com.example.app"; val flags = 0x10
+			return { packageName.length + pkg.length + flags }
+		}
+
+		private val sBenchmark = Benchmark("ClosureBenchmark")
+		@AfterClass @JvmStatic fun report() { sBenchmark.report() }
+	}
+}